@@ -0,0 +1,149 @@
+package benchmarks;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import spreadsheet.CellAddress;
+import spreadsheet.CellToken;
+import spreadsheet.FormulaParseException;
+import spreadsheet.Spreadsheet;
+
+
+/**
+ * Synthetic dependency graphs to benchmark recalculation on. Every
+ * shape has a root cell at A0 that every other cell depends on, directly
+ * or transitively, so an edit of the root recalculates the whole graph.
+ *
+ * @author Dmitriy Onishchenko
+ * @version 26 February 2016
+ */
+public enum GraphShape {
+
+    /**
+     * A single column where every cell adds one to the cell above,
+     * one cell per dependency level.
+     */
+    CHAIN {
+        @Override
+        void fill(final Map<CellToken, String> theCells, final int theSize) {
+            for (int row = 1; row < theSize; row++) {
+                theCells.put(new CellToken(row, 0), "=" + label(row - 1, 0) + "+1");
+            }
+        }
+    },
+
+    /**
+     * A column of cells that all refer to the root only, a single
+     * dependency level as wide as the graph.
+     */
+    FAN_OUT {
+        @Override
+        void fill(final Map<CellToken, String> theCells, final int theSize) {
+            for (int row = 1; row < theSize; row++) {
+                theCells.put(new CellToken(row, 1), "=A0*" + (row % 10));
+            }
+        }
+    },
+
+    /**
+     * A square where every cell adds its neighbours above and to the left,
+     * whose dependency levels are its anti-diagonals.
+     */
+    GRID {
+        @Override
+        void fill(final Map<CellToken, String> theCells, final int theSize) {
+            final int side = side(theSize);
+
+            for (int row = 0; row < side; row++) {
+                for (int col = 0; col < side; col++) {
+                    if (row == 0 && col == 0) {
+                        continue;
+                    }
+                    final String formula;
+                    if (row == 0) {
+                        formula = label(row, col - 1) + "+1";
+                    } else if (col == 0) {
+                        formula = label(row - 1, col) + "+1";
+                    } else {
+                        formula = label(row - 1, col) + "+" + label(row, col - 1);
+                    }
+                    theCells.put(new CellToken(row, col), "=" + formula);
+                }
+            }
+        }
+    },
+
+    /**
+     * Cells laid out row by row in a square, each referring to up to
+     * three random earlier cells and to the root.
+     */
+    RANDOM_DAG {
+        @Override
+        void fill(final Map<CellToken, String> theCells, final int theSize) {
+            final int side = side(theSize);
+            final Random random = new Random(SEED);
+
+            for (int i = 1; i < side * side; i++) {
+                final StringBuilder formula = new StringBuilder("=A0");
+                final int references = 1 + random.nextInt(3);
+
+                for (int j = 0; j < references; j++) {
+                    final int precedent = random.nextInt(i);
+                    formula.append('+').append(label(precedent / side, precedent % side));
+                }
+                theCells.put(new CellToken(i / side, i % side), formula.toString());
+            }
+        }
+    };
+
+    /**
+     * Seed of RANDOM_DAG, so every run builds the same graph.
+     */
+    private static final long SEED = 42L;
+
+
+    /**
+     * Builds a spreadsheet holding a graph of this shape.
+     * @param theSize the number of cells, rounded down to a square for
+     *        GRID and RANDOM_DAG
+     * @return Spreadsheet the spreadsheet, fully calculated
+     * @throws FormulaParseException never, the formulas are valid
+     */
+    public Spreadsheet build(final int theSize) throws FormulaParseException {
+
+        final Spreadsheet sheet = new Spreadsheet();
+        final Map<CellToken, String> cells = new LinkedHashMap<CellToken, String>();
+
+        cells.put(new CellToken(0, 0), "1");
+        fill(cells, theSize);
+        sheet.applyAll(cells);
+        return sheet;
+    }
+
+    /**
+     * Adds the formulas of every cell but the root.
+     * @param theCells the input of each location
+     * @param theSize the number of cells
+     */
+    abstract void fill(Map<CellToken, String> theCells, int theSize);
+
+    /**
+     * Returns the label of a location, e.g. B3.
+     * @param theRow the row
+     * @param theColumn the column
+     * @return String the label
+     */
+    static String label(final int theRow, final int theColumn) {
+        return CellAddress.label(CellAddress.encode(theRow, theColumn));
+    }
+
+    /**
+     * Returns the side of the largest square with at most theSize cells.
+     * @param theSize the number of cells
+     * @return int the side
+     */
+    static int side(final int theSize) {
+        return (int) Math.sqrt(theSize);
+    }
+}
@@ -0,0 +1,109 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import spreadsheet.ExpressionTree;
+import spreadsheet.FormulaParseException;
+import spreadsheet.Spreadsheet;
+import spreadsheet.Stack;
+
+
+/**
+ * Throughput of turning formula text into an expression tree, and of
+ * evaluating the tree: the postfix parser Spreadsheet.getFormula followed
+ * by ExpressionTree.buildExpressionTree, the single pass parser 
+ * Spreadsheet.parseFormula, and ExpressionTree.evaluate.
+ *
+ * @author Dmitriy Onishchenko
+ * @version 26 February 2016
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark {
+
+    /**
+     * The formula, from a single literal to a long expression with
+     * parentheses and an aggregate over a range.
+     */
+    @Param({"42",
+            "A1+B2*C3",
+            "(A1+B2)*(C3-D4)/5+E5*(F6+7)-G7",
+            "SUM(A0:C9)/AVG(B0:B9)+MAX(A0:A9)*(B3-C4)+D5*E6-F7/(G8+1)+H9*I0-J1"})
+    public String formula;
+
+    /**
+     * The spreadsheet the formula is parsed for and evaluated on.
+     */
+    private Spreadsheet sheet;
+
+    /**
+     * The formula parsed once, for evaluate.
+     */
+    private ExpressionTree tree;
+
+
+    /**
+     * Builds the spreadsheet and the tree.
+     * @throws FormulaParseException never, the formulas are valid
+     */
+    @Setup
+    public void setUp() throws FormulaParseException {
+        sheet = GraphShape.GRID.build(100);
+        tree = sheet.parseFormula(formula);
+    }
+
+    /**
+     * Parses into a postfix stack of tokens.
+     * @return Stack the tokens
+     */
+    @Benchmark
+    public Stack getFormula() {
+        return sheet.getFormula(formula);
+    }
+
+    /**
+     * Parses into a postfix stack of tokens and builds the tree from it.
+     * @return ExpressionTree the tree
+     */
+    @Benchmark
+    public ExpressionTree getFormulaAndBuildTree() {
+        final ExpressionTree expressionTree = new ExpressionTree();
+        expressionTree.buildExpressionTree(sheet.getFormula(formula));
+        return expressionTree;
+    }
+
+    /**
+     * Parses straight into the tree.
+     * @return ExpressionTree the tree
+     * @throws FormulaParseException never, the formulas are valid
+     */
+    @Benchmark
+    public ExpressionTree parseFormula() throws FormulaParseException {
+        return sheet.parseFormula(formula);
+    }
+
+    /**
+     * Evaluates the tree.
+     * @return int the value
+     */
+    @Benchmark
+    public int evaluate() {
+        return tree.evaluate(sheet);
+    }
+}
@@ -0,0 +1,131 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import spreadsheet.CellToken;
+import spreadsheet.FormulaParseException;
+import spreadsheet.Spreadsheet;
+
+
+/**
+ * Latency of recalculating after an edit, on graphs of every GraphShape.
+ *
+ * leafEdit edits a cell nothing depends on, the cost of an edit itself.
+ * The other benchmarks edit the root, which every other cell depends on.
+ * rootEdit recalculates the root and all of its dependents incrementally.
+ * fullRecalculation turns incremental recalculation off, so the edit
+ * sorts and evaluates the entire sheet through topologicalSort.
+ *
+ * @author Dmitriy Onishchenko
+ * @version 26 February 2016
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecalculationBenchmark {
+
+    /**
+     * The shape of the dependency graph.
+     */
+    @Param
+    public GraphShape shape;
+
+    /**
+     * The number of cells.
+     */
+    @Param({"1000", "10000", "100000"})
+    public int size;
+
+    /**
+     * Alternating inputs of the edited cell, so every edit changes it.
+     */
+    private static final String[] INPUTS = {"1", "2"};
+
+    /**
+     * The spreadsheet, recalculated incrementally.
+     */
+    private Spreadsheet incremental;
+
+    /**
+     * The same spreadsheet, recalculated entirely after every edit.
+     */
+    private Spreadsheet full;
+
+    /**
+     * The root every cell depends on.
+     */
+    private CellToken root;
+
+    /**
+     * A cell no other cell depends on.
+     */
+    private CellToken leaf;
+
+    /**
+     * Number of edits so far.
+     */
+    private int edits;
+
+
+    /**
+     * Builds the graphs.
+     * @throws FormulaParseException never, the formulas are valid
+     */
+    @Setup
+    public void setUp() throws FormulaParseException {
+        incremental = shape.build(size);
+        full = shape.build(size);
+        full.setIncrementalRecalculation(false);
+        root = new CellToken(0, 0);
+        // below every shape, in a column the sheet can hold whatever the size
+        leaf = new CellToken(size, 0);
+    }
+
+    /**
+     * Edits a cell without dependents.
+     * @return int the value of the cell
+     * @throws FormulaParseException never, the inputs are valid
+     */
+    @Benchmark
+    public int leafEdit() throws FormulaParseException {
+        incremental.setCellFormula(leaf, INPUTS[edits++ & 1]);
+        return incremental.getCellValue(leaf);
+    }
+
+    /**
+     * Edits the root, recalculating it and its dependents.
+     * @return int the value of the root
+     * @throws FormulaParseException never, the inputs are valid
+     */
+    @Benchmark
+    public int rootEdit() throws FormulaParseException {
+        incremental.setCellFormula(root, INPUTS[edits++ & 1]);
+        return incremental.getCellValue(root);
+    }
+
+    /**
+     * Edits the root, recalculating the entire spreadsheet.
+     * @return int the value of the root
+     * @throws FormulaParseException never, the inputs are valid
+     */
+    @Benchmark
+    public int fullRecalculation() throws FormulaParseException {
+        full.setCellFormula(root, INPUTS[edits++ & 1]);
+        return full.getCellValue(root);
+    }
+}
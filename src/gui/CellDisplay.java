@@ -0,0 +1,56 @@
+package gui;
+
+
+/**
+ * What a cell of the table displays: its text, and whether it is the
+ * value of a formula or plain text, which the renderer colors differently.
+ * Entries of the display cache of MyTableModel, see MyTableModel.getValueAt.
+ * 
+ * @author Dmitriy Onishchenko
+ * @version 1 March 2016
+ */
+final class CellDisplay {
+    
+    /**
+     * The row of the spreadsheet.
+     */
+    final int row;
+    
+    /**
+     * The column of the spreadsheet.
+     */
+    final int column;
+    
+    /**
+     * The text displayed.
+     */
+    final String text;
+    
+    /**
+     * True if the text is the value of a formula.
+     */
+    final boolean formula;
+    
+    
+    /**
+     * Constructor.
+     * @param row the row of the spreadsheet
+     * @param column the column of the spreadsheet
+     * @param text the text displayed
+     * @param formula true if the text is the value of a formula
+     */
+    CellDisplay(int row, int column, String text, boolean formula) {
+        this.row = row;
+        this.column = column;
+        this.text = text;
+        this.formula = formula;
+    }
+    
+    /**
+     * Returns the text displayed, which is also what the cell editor starts with.
+     */
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -0,0 +1,35 @@
+package gui;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+/**
+ * Flight Recorder event of a cell edited in the table, from the value
+ * being set until the edit has been handed to the recalculation engine.
+ *
+ * @author Dmitriy Onishchenko
+ * @version 1 March 2016
+ */
+@Name("spreadsheet.CellEdit")
+@Label("Cell Edit")
+@Category("Spreadsheet")
+@Description("A cell edited in the table")
+@StackTrace(false)
+final class CellEditEvent extends jdk.jfr.Event {
+
+    /**
+     * The address of the cell, e.g. B3.
+     */
+    @Label("Cell")
+    String cell;
+
+    /**
+     * Number of characters typed into the cell.
+     */
+    @Label("Formula Length")
+    int formulaLength;
+}
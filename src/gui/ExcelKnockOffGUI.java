@@ -11,23 +11,32 @@ import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseEvent;
 import java.awt.event.WindowEvent;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.IOException;
 
+import javax.management.JMException;
+import javax.swing.JFileChooser;
 import javax.swing.JFrame;
-import javax.swing.JLabel;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
 import javax.swing.JTable;
 import javax.swing.KeyStroke;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
 import javax.swing.event.MouseInputAdapter;
 import javax.swing.table.DefaultTableCellRenderer;
 
-import spreadsheet.CellToken;
+import spreadsheet.Cell;
+import spreadsheet.CellAddress;
+import spreadsheet.RecalculationEngine;
 import spreadsheet.Spreadsheet;
+import spreadsheet.SpreadsheetCsv;
 
 
 /**
@@ -45,20 +54,50 @@ public class ExcelKnockOffGUI extends JPanel {
     private static final long serialVersionUID = 3401498614862807737L;
 
     /**
-     * The spreadsheet size.
+     * The size of the empty spreadsheet, it grows as cells beyond it are used.
      */
     private static final int SPEADSHEET_SIZE = 200;   
+    
+    /**
+     * Width of the row header column.
+     */
+    private static final int ROW_HEADER_WIDTH = 40;
+    
+    /**
+     * Font of the spreadsheet cells.
+     */
+    private static final Font CELL_FONT = new Font(Font.SANS_SERIF, Font.BOLD, 16);
+    
+    /**
+     * Background of the row header column.
+     */
+    private static final Color HEADER_BACKGROUND = new Color(238, 238, 238);
 
     /**
      * JTable to display spreadsheet values.
      */
     private JTable table;
     
+    /**
+     * The table model, which caches what each cell displays.
+     */
+    private MyTableModel model;
+    
     /**
      * The spreadsheet.
      */
     private Spreadsheet spreadsheet;
     
+    /**
+     * The engine recalculating the spreadsheet off the Event Dispatch Thread.
+     */
+    private RecalculationEngine engine;
+    
+    /**
+     * Shows the progress of a recalculation while the engine works.
+     */
+    private JProgressBar progress;
+    
     /**
      * Scroll bar for table.
      */
@@ -77,37 +116,127 @@ public class ExcelKnockOffGUI extends JPanel {
         super(new BorderLayout());        
         
         spreadsheet = new Spreadsheet(SPEADSHEET_SIZE);
-        table = new JTable(new MyTableModel(spreadsheet));           
+        engine = new RecalculationEngine(spreadsheet);
+        model = new MyTableModel(spreadsheet, engine);
+        table = new JTable(model) {
+            
+            /**
+             * Generated ID.
+             */
+            private static final long serialVersionUID = -4402961135937411046L;
+
+            // columns are recreated when the spreadsheet grows columns
+            @Override
+            public void createDefaultColumnsFromModel() {
+                super.createDefaultColumnsFromModel();
+                if (getColumnCount() > 0) {
+                    getColumnModel().getColumn(0).setPreferredWidth(ROW_HEADER_WIDTH);
+                }
+            }
+        };           
         scroll = new JScrollPane(table);       
         formulaBar = new FormulaBar();         
+        progress = new JProgressBar();
+        progress.setStringPainted(true);
+        progress.setVisible(false);
+        engine.addPropertyChangeListener(new RecalculationProgress());
         add(formulaBar, BorderLayout.NORTH);
         add(scroll, BorderLayout.CENTER);
+        add(progress, BorderLayout.SOUTH);
+        
+        try {
+            spreadsheet.getMetrics().register("ExcelKnockOff");
+        } catch (final JMException e) {
+            // the spreadsheet works without its metrics
+            System.err.println("Metrics not published: " + e.getMessage());
+        }
     }
     
     
     
     //////////////////////////////// PRIVATE HELPER METHODS /////////////////////////////////////////
     
+    /**
+     * Returns whether the cell at the location holds a formula, without
+     * occupying an empty location.
+     * @param address the address of the location, see CellAddress
+     * @return true if the cell has an expression tree
+     */
+    private boolean hasFormula(long address) {
+        final Cell cell = spreadsheet.peekCell(address);
+        return cell != null && cell.hasExpTree();
+    }
+    
     private String getHelpDialog() {
-    	String string = "Spreadsheet size: 200x200 \n " +
+    	String string = "Spreadsheet size: 200x200, growing as formulas refer " +
+    				"to cells beyond it \n " +
     				"Columns are in letters (A, B, C) \n " +
     				"Rows are in numbers (1, 2, 3) \n " +
-    				"Columns range from A-GR, rows range from 0-199 \n" +
+    				"Columns range from A-XFD, rows range from 0-1048575 \n" +
     				"CellTokens (locations): letter(s) followed immediately by " +
     				"numbers. Examples include: 'A3', 'AE34', and 'Z124' \n \n" +
     				"'Exit' will exit the application. \n 'New' will start a new " +
-    				"spreadsheet, overwriting the current one. \n \n" +
+    				"spreadsheet, overwriting the current one. \n 'Open CSV' and " +
+    				"'Save CSV' load and store the formulas as comma separated values. \n \n" +
     				"For typing formulas begin with '=' then formula afterwards. \n" +
     				"Without '=', whatever is typed is left as a String " +
     				"(useful for notes) \nFormulas = Blue text, Strings = Red text.\n" +
     				"Letters are not case-sensitive for formulas and are limited to " +
     				"Literals, CellTokens, and operators (between other non-operator tokens)" +
-    				"\nValid Operations are: + - * / \n\nCells cannot have cycles which " +
+    				"\nValid Operations are: + - * / \n" +
+    				"Functions over a range of cells: SUM, AVG, MIN, MAX, e.g. " +
+    				"'=SUM(A0:A99)' or '=MAX(A0:C5)' \n\nCells cannot have cycles which " +
     				"means that cell A1 cannot reference itself or reference cells that depend" +
     				" on cell A1.";    					
     	return string;
     }
 
+    /**
+     * Asks for a CSV file and replaces the spreadsheet with its content.
+     * The spreadsheet is left empty if the file is not valid.
+     * @param window the parent of the dialogs
+     */
+    private void openCsv(JFrame window) {
+        
+        final JFileChooser chooser = new JFileChooser();
+        if (chooser.showOpenDialog(window) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        
+        engine.discard();
+        spreadsheet.clear();
+        try {
+            engine.readCsv(chooser.getSelectedFile().toPath());
+        } catch (final IOException e) {
+            JOptionPane.showMessageDialog(window, "Cannot open file: " + e.getMessage(), 
+                    "ERROR", JOptionPane.ERROR_MESSAGE);
+        }
+        formulaBar.resetMessages();
+        model.fireTableDataChanged();
+    }
+    
+    /**
+     * Asks for a file and saves the formulas of the spreadsheet to it as CSV.
+     * @param window the parent of the dialogs
+     */
+    private void saveCsv(JFrame window) {
+        
+        final JFileChooser chooser = new JFileChooser();
+        if (chooser.showSaveDialog(window) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        
+        try {
+            engine.awaitIdle();
+            SpreadsheetCsv.write(spreadsheet, chooser.getSelectedFile().toPath(), true);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final IOException e) {
+            JOptionPane.showMessageDialog(window, "Cannot save file: " + e.getMessage(), 
+                    "ERROR", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+    
     /**
      * Helper method that builds and returns a menu bar.
      * @param window the window to add to.
@@ -122,6 +251,8 @@ public class ExcelKnockOffGUI extends JPanel {
         JMenu help = new JMenu("Help...");
         JMenuItem exit = new JMenuItem("Exit");
         JMenuItem newSheet = new JMenuItem("New");
+        JMenuItem open = new JMenuItem("Open CSV...");
+        JMenuItem save = new JMenuItem("Save CSV...");
         JMenuItem manual = new JMenuItem("User Manual (Summary)");
 
         // Set mnemonic and accelerators
@@ -130,6 +261,10 @@ public class ExcelKnockOffGUI extends JPanel {
         exit.setMnemonic(KeyEvent.VK_E);
         newSheet.setMnemonic(KeyEvent.VK_N);        
         newSheet.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_N, ActionEvent.CTRL_MASK));
+        open.setMnemonic(KeyEvent.VK_O);
+        open.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_O, ActionEvent.CTRL_MASK));
+        save.setMnemonic(KeyEvent.VK_S);
+        save.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_S, ActionEvent.CTRL_MASK));
         exit.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_E, ActionEvent.CTRL_MASK));
 
 
@@ -137,12 +272,27 @@ public class ExcelKnockOffGUI extends JPanel {
         newSheet.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(final ActionEvent event) {
+                engine.discard();
                 spreadsheet.clear();
                 formulaBar.resetMessages();
-                table.repaint();
+                model.fireTableDataChanged();
             }
         });       
 
+        open.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(final ActionEvent event) {
+                openCsv(window);
+            }
+        });
+        
+        save.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(final ActionEvent event) {
+                saveCsv(window);
+            }
+        });
+
         exit.addActionListener(new ActionListener() {
 
             @Override
@@ -163,6 +313,8 @@ public class ExcelKnockOffGUI extends JPanel {
         file.add(exit);
         file.addSeparator();
         file.add(newSheet);
+        file.add(open);
+        file.add(save);
         
         help.add(manual);
 
@@ -209,27 +361,21 @@ public class ExcelKnockOffGUI extends JPanel {
 
                     if (col > 0) { // If not row header...
                         // selected cell at this location
-                        CellToken cellToken = new CellToken(row, col-1);            
-                        String formula = spreadsheet.getCell(cellToken).getFormula();                       
+                        long address = CellAddress.encode(row, col-1);            
+                        String formula = spreadsheet.getCellFormula(address);                       
                         
-                        if (spreadsheet.getCell(cellToken).hasExpTree()) {
+                        if (hasFormula(address)) {
                             formula = "=" + formula;
                         }                        
                         // update formula bar
-                        formulaBar.updateFormulaBar(formula, cellToken.toString());
+                        formulaBar.updateFormulaBar(formula, CellAddress.label(address));
                     }                        
                 }              
             }
         });    
                
-        // add custom renderer
-        for (int i = 0; i < table.getColumnCount(); i++) {
-            
-            if (i == 0) {
-                table.getColumnModel().getColumn(i).setPreferredWidth(40); 
-            }           
-            table.getColumnModel().getColumn(i).setCellRenderer(new CustomRenderer());
-        }        
+        // add custom renderer, also for columns the spreadsheet grows
+        table.setDefaultRenderer(Object.class, new CustomRenderer());
     }
     
     
@@ -277,23 +423,54 @@ public class ExcelKnockOffGUI extends JPanel {
             int col = table.columnAtPoint(event.getPoint());     
             
             // selected cell at this location
-            CellToken cellToken = new CellToken(row, col-1);
+            long address = CellAddress.encode(row, col-1);
             
             if (col > 0) { // If not row header...
                 
-                String formula = spreadsheet.getCell(cellToken).getFormula();           
+                String formula = spreadsheet.getCellFormula(address);           
                 
                 // Checks to see if the Cell has a formula.
-                if (spreadsheet.getCell(cellToken).hasExpTree()) {
+                if (hasFormula(address)) {
                     formula = "=" + formula;
                 }
                 // update formula bar
-                formulaBar.updateFormulaBar(formula, cellToken.toString());            
+                formulaBar.updateFormulaBar(formula, CellAddress.label(address));            
             }           
         }
     }
     
     
+    /**
+     * Shows the progress of the recalculation engine in the progress bar.
+     * Engine events arrive on the engine thread and are handed to the
+     * Event Dispatch Thread.
+     */
+    private class RecalculationProgress implements PropertyChangeListener {
+        
+        @Override
+        public void propertyChange(final PropertyChangeEvent evt) {
+            
+            // CHANGED is handled by the table model
+            if (!evt.getPropertyName().equals(RecalculationEngine.PROGRESS)
+                    && !evt.getPropertyName().equals(RecalculationEngine.DONE)) {
+                return;
+            }
+            final boolean done = evt.getPropertyName().equals(RecalculationEngine.DONE);
+            final int evaluated = done ? 0 : (Integer) evt.getOldValue();
+            final int total = done ? 0 : (Integer) evt.getNewValue();
+            
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    progress.setVisible(!done);
+                    progress.setMaximum(total);
+                    progress.setValue(evaluated);
+                    progress.setString("Recalculating " + evaluated + " of " + total + " cells");
+                }
+            });
+        }
+    }
+    
     /**
      * Custom renderer for displaying content in the table.
      * Changes font and background color.
@@ -316,23 +493,22 @@ public class ExcelKnockOffGUI extends JPanel {
             Component cell = super.getTableCellRendererComponent(table, value, isSelected, hasFocus, row, column);
             
             if (column == 0 ) {    // Special case for row header           
-                setHorizontalAlignment((int)JLabel.CENTER_ALIGNMENT);               
-                cell.setBackground(new Color(238, 238, 238));
+                setHorizontalAlignment(SwingConstants.CENTER);               
+                cell.setBackground(HEADER_BACKGROUND);
                 
             } else { // All other cells - Font, Alignment, Color
-                cell.setFont(new Font(Font.SANS_SERIF, Font.BOLD, 16));   
+                cell.setFont(CELL_FONT);   
                 setHorizontalAlignment(SwingConstants.RIGHT);   
                 
-                // Checks for formulas: Strings = red, Valid Formulas = blue.
-                CellToken location = new CellToken(row, column - 1);
-                if (!spreadsheet.getCell(location).hasExpTree()) {
-                	cell.setForeground(Color.RED); // Isn't a formula.
-                } else {
+                // Strings = red, Valid Formulas = blue, as cached by the model.
+                if (value instanceof CellDisplay && ((CellDisplay) value).formula) {
                 	cell.setForeground(Color.BLUE); // Is a formula.
+                } else {
+                	cell.setForeground(Color.RED); // Isn't a formula.
                 }         
             }
             
-            table.repaint(); //Repaints JTable
+            // the table repaints a cell when the model reports a change
             return cell;
         }
     }   
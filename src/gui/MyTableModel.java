@@ -2,16 +2,23 @@ package gui;
 
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 import javax.swing.event.TableModelEvent;
 import javax.swing.event.TableModelListener;
 import javax.swing.table.AbstractTableModel;
 
 import spreadsheet.Cell;
+import spreadsheet.CellAddress;
 import spreadsheet.CellToken;
+import spreadsheet.FormulaParseException;
+import spreadsheet.RecalculationEngine;
 import spreadsheet.Spreadsheet;
-import spreadsheet.Stack;
 
 /**
  * A custom TableModel designed for the spreadsheet application
@@ -28,14 +35,14 @@ public class MyTableModel extends AbstractTableModel implements TableModelListen
     private static final long serialVersionUID = -1979825020261774357L;
 
     /**
-     * The information to display. (Cells in our case and their values) 
-     */    
-    private final Object[][] data;
+     * Number of rows of the spreadsheet the table was last told about.
+     */
+    private int numRows;
     
     /**
-     * Column header.
+     * Number of columns of the spreadsheet the table was last told about.
      */
-    private String[] columns;
+    private int numColumns;
     
     /**
      * The spreadsheet.
@@ -43,121 +50,224 @@ public class MyTableModel extends AbstractTableModel implements TableModelListen
     private Spreadsheet spreadsheet;
     
     /**
-     * Keep track of previous formula of cell in case cycle and need
-     * to set to previous formula.
+     * The engine recalculating the spreadsheet off the Event Dispatch Thread.
+     */
+    private RecalculationEngine engine;
+    
+    /**
+     * Most table model events fired for one batch of changed cells,
+     * more changes repaint the band of rows they lie in.
+     */
+    private static final int MAX_EVENTS = 64;
+    
+    /**
+     * The display cache holds a window of 2^CACHE_BITS rows by 2^CACHE_BITS
+     * columns without two cells sharing a slot.
      */
-    private String previousFormula;
+    private static final int CACHE_BITS = 6;
     
     /**
-     * Boolean flag if cycle found in graph.
+     * Addresses of the cells whose value the engine changed and the table 
+     * has not been told about yet, as the engine reported them. Guarded by itself.
      */
-    private boolean cycleFound;  
+    private final List<long[]> changedCells;
     
     /**
-     * The row of cell being changed.
+     * True while a table update for engine results is queued on the 
+     * Event Dispatch Thread, so a burst of results causes one update.
      */
-    private int row;
+    private final AtomicBoolean updateQueued;
     
     /**
-     * The column of cell being changed.
+     * What recently displayed cells display, direct mapped by location.
+     * Entries are dropped when their cell changes, see fireTableChanged.
+     * Only used on the Event Dispatch Thread.
      */
-    private int col;
+    private final CellDisplay[] displayCache;
     
     /**
      * Constructor.
      * @param spreadsheet the spreadsheet for this model.
+     * @param engine the engine recalculating the spreadsheet.
      */
-    public MyTableModel(Spreadsheet spreadsheet) {
+    public MyTableModel(Spreadsheet spreadsheet, RecalculationEngine engine) {
         
-        previousFormula = "";
         this.spreadsheet = spreadsheet;
-        data = spreadsheet.getSpreadsheet();
-        columns = new String[spreadsheet.getNumColumns()];
-        setUpColumnNames();       
+        this.engine = engine;
+        changedCells = new ArrayList<long[]>();
+        updateQueued = new AtomicBoolean();
+        displayCache = new CellDisplay[1 << (2 * CACHE_BITS)];
+        numRows = spreadsheet.getNumRows();
+        numColumns = spreadsheet.getNumColumns();
         spreadsheet.addPropertyChangeListener(this);
+        engine.addPropertyChangeListener(this);
         addTableModelListener(this);       
     }
       
 //////////////////////////////PRIVATE HELPER METHODS /////////////////////////////////////////////
     
     /**
-     * Sets up the column names of the table model.
+     * Helper method that updates cell that is being updated.
+     * A formula that would create a cycle is rejected by the spreadsheet
+     * before anything changes, so the cell keeps its previous formula.
+     * A formula that does not parse is reported and also leaves the cell as it was.
+     * The engine recalculates the dependents in the background.
+     * @param address the cell address, see CellAddress.
+     * @param inputFormula the new formula
      */
-    private void setUpColumnNames() { 
-
-        for (int i = 0; i < spreadsheet.getNumColumns(); i++) {      
+    private void processCell(long address, String inputFormula) {
+         
+        final int row = CellAddress.row(address);
+        final int column = CellAddress.column(address);
+        try {
+            engine.edit(new CellToken(row, column), inputFormula);
+        } catch (final FormulaParseException e) {
+            JOptionPane.showMessageDialog(null, "Invalid formula: " + e.getMessage(), 
+                    "ERROR", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
 
-            if(i >= 26) {  // If i > 26, more than 1 char will be needed.             
-                char first = (char) ((i / 26) + 64);
-                char second = (char) ((i % 26) + 65);
-                //convert back to int = first * 26 + second
-                columns[i] = Character.toString(first) + Character.toString(second);
-            }            
-            else { // Only 1 char is needed
-                char letter = (char) (i + 65);            
-                columns[i] = Character.toString(letter);  
+        // only the edited cell changed so far, the engine reports the rest
+        fireTableCellUpdated(row, column + 1); 
+        updateExtent();
+    }   
+    
+    /**
+     * Tells the table about rows and columns the spreadsheet grew by,
+     * e.g. when a formula refers to a cell beyond the last row.
+     */
+    private void updateExtent() {
+        
+        final int rows = spreadsheet.getNumRows();
+        
+        if (numColumns != spreadsheet.getNumColumns()) {
+            numRows = rows;
+            numColumns = spreadsheet.getNumColumns();
+            fireTableStructureChanged();
+        } else if (numRows != rows) {
+            final int first = numRows;
+            numRows = rows;
+            if (rows > first) {
+                fireTableRowsInserted(first, rows - 1);
+            } else {
+                fireTableRowsDeleted(rows, first - 1);
             }
-        }        
+        }
     }
-
+    
     /**
-     * Helper method that updates cell that is being updated.
-     * @param curCellToken the cell location.
-     * @param currentCell the current cell
-     * @param inputFormula the new formula
+     * Returns the slot of the display cache of a location.
+     * @param row the row of the spreadsheet
+     * @param column the column of the spreadsheet
+     * @return int the slot
      */
-    private void processCell(CellToken curCellToken, Cell currentCell, String inputFormula) {
-
-        Stack expTreeTokenStack, expTreeTokenStack2; 
-         
-        if (isInteger(inputFormula)) {               
-            expTreeTokenStack = spreadsheet.getFormula (inputFormula.toUpperCase());  
-            expTreeTokenStack2 = spreadsheet.getFormula (inputFormula.toUpperCase());
-            spreadsheet.updateCellDependency(curCellToken, expTreeTokenStack2);
-            spreadsheet.changeCellFormulaAndRecalculate(curCellToken, expTreeTokenStack);         
+    private static int cacheSlot(int row, int column) {
+        final int mask = (1 << CACHE_BITS) - 1;
+        return (row & mask) << CACHE_BITS | (column & mask);
+    }
+    
+    /**
+     * Drops the cached display of the cells in rows firstRow to lastRow 
+     * of a column, or of every column if column is negative.
+     * @param firstRow the first row
+     * @param lastRow the last row, inclusive
+     * @param column the column of the spreadsheet, negative for all
+     */
+    private void invalidate(int firstRow, int lastRow, int column) {
+        
+        if (column >= 0 && lastRow - firstRow < displayCache.length) {
+            // look at the slot of each cell
+            for (int row = firstRow; row <= lastRow; row++) {
+                final int slot = cacheSlot(row, column);
+                final CellDisplay display = displayCache[slot];
+                
+                if (display != null && display.row == row && display.column == column) {
+                    displayCache[slot] = null;
+                }
+            }
+            return;
+        }
+        for (int i = 0; i < displayCache.length; i++) {
+            final CellDisplay display = displayCache[i];
             
-        } else if (cycleFound) {          
-            expTreeTokenStack = spreadsheet.getFormula (inputFormula.toUpperCase());  
-            expTreeTokenStack2 = spreadsheet.getFormula (inputFormula.toUpperCase());            
-            spreadsheet.updateCellDependency(curCellToken, expTreeTokenStack2);
-            spreadsheet.changeCellFormulaAndRecalculate(curCellToken, expTreeTokenStack);
-
-            if (inputFormula.length() == 0) {               
-                currentCell.setFormula(inputFormula);
-                currentCell.setExpressionTree(null);               
-            }             
-
-        } else if (inputFormula.equals("") || inputFormula.charAt(0) != '=') {
-            Stack empty = new Stack();
-            empty.makeEmpty();            
-            spreadsheet.updateCellDependency(curCellToken, empty);
-            spreadsheet.changeCellFormulaAndRecalculate(curCellToken, empty);            
-            currentCell.setExpressionTree(null);           
-            currentCell.setFormula(inputFormula);
-
-        } else if (inputFormula.charAt(0) == '=') {           
-            inputFormula = inputFormula.substring(1);
-            expTreeTokenStack = spreadsheet.getFormula (inputFormula.toUpperCase());  
-            expTreeTokenStack2 = spreadsheet.getFormula (inputFormula.toUpperCase());
-            spreadsheet.updateCellDependency(curCellToken, expTreeTokenStack2);
-            spreadsheet.changeCellFormulaAndRecalculate(curCellToken, expTreeTokenStack);
-        }        
-
-        cycleFound = false;
-        // let the table know that we edited the table
-        fireTableDataChanged(); 
-    }   
+            if (display != null && display.row >= firstRow && display.row <= lastRow 
+                    && (column < 0 || display.column == column)) {
+                displayCache[i] = null;
+            }
+        }
+    }
+    
+    /**
+     * Tells the table about the cells whose value changed, as few events 
+     * as possible that cover only those cells. Changes in consecutive rows
+     * of a column are one event, and too many events are replaced by one 
+     * for the band of rows that changed.
+     * @param theChanged the addresses of the changed cells, in batches
+     */
+    private void fireCellsUpdated(final List<long[]> theChanged) {
+        
+        int count = 0;
+        for (long[] batch: theChanged) {
+            count += batch.length;
+        }
+        if (count == 0) {
+            return;
+        }
+        
+        // transposed addresses, which order by column, then by row
+        final long[] changed = new long[count];
+        count = 0;
+        for (long[] batch: theChanged) {
+            for (long address: batch) {
+                changed[count++] = CellAddress.encode(CellAddress.column(address), 
+                                                      CellAddress.row(address));
+            }
+        }
+        Arrays.sort(changed);
+        
+        // runs of consecutive rows in one column, in model coordinates
+        final List<int[]> runs = new ArrayList<int[]>();
+        int firstRow = Integer.MAX_VALUE;
+        int lastRow = Integer.MIN_VALUE;
+        int[] run = null;
+        
+        for (long transposed: changed) {
+            final int row = CellAddress.column(transposed);
+            final int col = CellAddress.row(transposed) + 1;
+            
+            firstRow = Math.min(firstRow, row);
+            lastRow = Math.max(lastRow, row);
+            if (run != null && run[2] == col && run[1] >= row - 1) {
+                run[1] = row;
+            } else {
+                run = new int[] {row, row, col};
+                runs.add(run);
+            }
+        }
+        
+        if (runs.size() > MAX_EVENTS) {
+            fireTableRowsUpdated(firstRow, lastRow);
+            return;
+        }
+        for (int[] r: runs) {
+            if (r[0] == r[1]) {
+                fireTableCellUpdated(r[0], r[2]);
+            } else {
+                fireTableChanged(new TableModelEvent(this, r[0], r[1], r[2]));
+            }
+        }
+    }
     
 /////////////////////////////// PUBLIC METHODS /////////////////////////////////////////////////////
     
     @Override
     public int getColumnCount() {
-        return columns.length + 1;
+        return numColumns + 1;
     }
 
     @Override
     public int getRowCount() {
-        return data.length;
+        return numRows;
     }
 
     @Override
@@ -166,7 +276,7 @@ public class MyTableModel extends AbstractTableModel implements TableModelListen
         if (col == 0) 
             return "";
         else
-            return columns[col - 1].toString();
+            return CellAddress.columnLabel(col - 1);
     }
     
     @Override
@@ -174,13 +284,62 @@ public class MyTableModel extends AbstractTableModel implements TableModelListen
         // table changed      
     }
     
+    /**
+     * Returns the row number for column zero, and a CellDisplay for
+     * the other columns, cached until the cell changes.
+     */
     @Override
     public Object getValueAt(int row, int col) {
 
         if (col == 0)  
-            return new Integer(row);
-        else           
-            return ((Cell) data[row][col -1]).toString();
+            return Integer.valueOf(row);
+        
+        final int slot = cacheSlot(row, col - 1);
+        CellDisplay display = displayCache[slot];
+        
+        if (display == null || display.row != row || display.column != col - 1) {
+            // empty locations have no cell and display nothing
+            final Cell cell = spreadsheet.peekCell(row, col - 1);
+            display = cell == null ? new CellDisplay(row, col - 1, "", false) 
+                                   : new CellDisplay(row, col - 1, cell.toString(), cell.hasExpTree());
+            displayCache[slot] = display;
+        }
+        return display;
+    }
+    
+    /**
+     * Drops the cached display of the cells an event covers before
+     * telling the listeners, every fire method ends up here.
+     */
+    @Override
+    public void fireTableChanged(TableModelEvent e) {
+        
+        final boolean allRows = e.getFirstRow() == TableModelEvent.HEADER_ROW
+                || e.getLastRow() == Integer.MAX_VALUE;
+        
+        if (allRows || e.getType() != TableModelEvent.UPDATE) {
+            Arrays.fill(displayCache, null);
+        } else if (e.getColumn() == TableModelEvent.ALL_COLUMNS) {
+            invalidate(e.getFirstRow(), e.getLastRow(), -1);
+        } else if (e.getColumn() > 0) {
+            invalidate(e.getFirstRow(), e.getLastRow(), e.getColumn() - 1);
+        }
+        super.fireTableChanged(e);
+    }
+
+    /**
+     * Also picks up the size of the spreadsheet, which changes when it
+     * is cleared or loaded.
+     */
+    @Override
+    public void fireTableDataChanged() {
+        
+        if (numColumns != spreadsheet.getNumColumns()) {
+            updateExtent();
+        } else {
+            numRows = spreadsheet.getNumRows();
+            super.fireTableDataChanged();
+        }
     }
 
     /**
@@ -199,23 +358,30 @@ public class MyTableModel extends AbstractTableModel implements TableModelListen
      */
     public void setValueAt(Object value, int row, int col) { 
 
+        final CellEditEvent event = new CellEditEvent();
+        event.begin();
         String inputFormula = ((String) value);           
-        final CellToken curCellToken = new CellToken(row, col - 1); 
-        final Cell currentCell = spreadsheet.getCell(curCellToken); 
-         
-        // keep track of old formula just in case there is a cycle
-        previousFormula = currentCell.getFormula();         
-        this.row = curCellToken.getRow();
-        this.col = curCellToken.getColumn();          
+        final long address = CellAddress.encode(row, col - 1); 
+        // only looked at, the engine may be evaluating cells
+        final Cell currentCell = spreadsheet.peekCell(address); 
+        final String formula = currentCell == null ? "" : currentCell.getFormula();
+        final int cellValue = currentCell == null ? 0 : currentCell.getValue();
             
-        if ((!currentCell.getFormula().equals(value) && 
-             !value.equals(Integer.toString(currentCell.getValue())))) {
+        if ((!formula.equals(value) && 
+             !value.equals(Integer.toString(cellValue)))) {
             
-            processCell(curCellToken, currentCell, inputFormula);             
+            processCell(address, inputFormula);             
             
-        } else if (value.equals("0") && !currentCell.hasExpTree()) {          
-            processCell(curCellToken, currentCell, inputFormula);    
+        } else if (value.equals("0") && (currentCell == null || !currentCell.hasExpTree())) {          
+            processCell(address, inputFormula);    
         } 
+        
+        event.end();
+        if (event.shouldCommit()) {
+            event.cell = CellAddress.label(address);
+            event.formulaLength = inputFormula.length();
+            event.commit();
+        }
     }
  
     /**
@@ -227,40 +393,47 @@ public class MyTableModel extends AbstractTableModel implements TableModelListen
         
         if (evt.getPropertyName().equals(Spreadsheet.CYCLE)) {
        
-           JOptionPane.showMessageDialog(null, "Cycle Found! Cannot reference same Cell", 
-                   "ERROR", JOptionPane.ERROR_MESSAGE);
-       
-            cycleFound = true;
-            setValueAt(previousFormula, row, col + 1);
-        }
-    }
-    
-    /**
-     * Method that takes a string and returns whether it is an integer or not.
-     * @param str the string
-     * @return true if positive or negative integer.
-     */
-    public static boolean isInteger(String str) {
-        
-        int index = 0;
-        
-        if (str.length() == 0) //empty string
-            return false;
-                
-        if (str.charAt(0) == '-') {
-            index = 1;            
-            str = str.substring(1);
-            if (str.length() == 0) {
-                return false; //string only has '-'
-            }
-        } 
-        
-        for (; index < str.length(); index++) { 
+           // the edit was rejected, nothing to undo, also fired on the engine thread
+           SwingUtilities.invokeLater(new Runnable() {
+               @Override
+               public void run() {
+                   JOptionPane.showMessageDialog(null, "Cycle Found! Cannot reference same Cell", 
+                           "ERROR", JOptionPane.ERROR_MESSAGE);
+               }
+           });
+           
+        } else if (evt.getPropertyName().equals(RecalculationEngine.FAILED)) {
+            
+            // fired on the engine thread, the engine takes the next edit
+            final String message = ((RuntimeException) evt.getNewValue()).getMessage();
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    JOptionPane.showMessageDialog(null, "Cannot evaluate formula: " + message, 
+                            "ERROR", JOptionPane.ERROR_MESSAGE);
+                }
+            });
             
-            char c = str.charAt(index);            
-            if (c < '0' || c > '9') 
-                return false; // non-integer found               
+        } else if (evt.getPropertyName().equals(RecalculationEngine.CHANGED)) {
+            
+            // fired on the engine thread, show the values computed so far
+            synchronized (changedCells) {
+                changedCells.add((long[]) evt.getNewValue());
+            }
+            if (updateQueued.compareAndSet(false, true)) {
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        updateQueued.set(false);
+                        final List<long[]> cells;
+                        synchronized (changedCells) {
+                            cells = new ArrayList<long[]>(changedCells);
+                            changedCells.clear();
+                        }
+                        fireCellsUpdated(cells);
+                    }
+                });
+            }
         }
-        return true;         
     }
 }
@@ -1,9 +1,8 @@
 package spreadsheet;
 
-import java.util.LinkedList;
-
 /**
- * A cell in the Spreadsheet ADT.
+ * A cell in the Spreadsheet ADT. The cell holds its formula and 
+ * dependencies, its value lives in the ValueStore of its spreadsheet.
  *
  * @author Dmitriy Onishchenko
  * @author Calvin (Method stubs)
@@ -13,9 +12,9 @@ import java.util.LinkedList;
 public class Cell {
 
     /**
-     * The Cells in-degree number (number of dependency cells)
+     * Slots of an empty id set.
      */
-    private int myInDegree;
+    private static final int[] NO_IDS = {};
     
     /**
      * The Cells in-degree number (number of dependency cells)
@@ -24,14 +23,9 @@ public class Cell {
     private int myInDegreeSort;
     
     /**
-     * The Cells out-degree number (number of adjacent cells)
-     */
-    private int myOutDegree;
-    
-    /**
-     * The integer value of the cell.
+     * The values of the spreadsheet, holding the integer value of the cell.
      */
-    private int myValue;
+    private final ValueStore myValues;
     
     /**
      * The row of the cell.
@@ -42,6 +36,12 @@ public class Cell {
      * The column of the cell.
      */
     private int myColumn;
+    
+    /**
+     * The id of the cell, an index into the spreadsheet's cell table
+     * used on both sides of a dependency edge.
+     */
+    private final int myId;
 
     /**
      * The formula of the Cell.
@@ -55,42 +55,120 @@ public class Cell {
     private ExpressionTree myExpressionTree;
 
     /**
-     * List of adjacent cells.
+     * Ids of adjacent cells (the cells whose formula refers to this one),
+     * null until the first one is added.
      */
-    private LinkedList<Cell> myAdjacents;
+    private IntSet myAdjacents;
 
     /**
-     * List of dependent cells.
+     * Ids of dependent cells (the cells this formula refers to),
+     * null until the first one is added.
      */
-    private LinkedList<Cell> myDependencies; 
+    private IntSet myDependencies; 
+    
+    /**
+     * The snapshot the formula and edges of the cell are still to be 
+     * decoded from, null once decoded or for a cell not loaded from one.
+     */
+    private volatile SpreadsheetSnapshot mySnapshot;
+    
+    /**
+     * The spreadsheet to pull a fresh value from when the value is read,
+     * null while the value is up to date.
+     */
+    private Spreadsheet myStaleIn;
         
 
     /**
      * Creates a new cell at the specified location of Array.
      *
-     * @param theX the x-coordinate of the cell.
-     * @param theY the y-coordinate of the cell.
+     * @param theRow the row of the cell.
+     * @param theColumn the column of the cell.
+     * @param theId the id of the cell in its spreadsheet.
+     * @param theValues the values of its spreadsheet.
      */
-    public Cell (final int theRow, final int theColumn) {
-        myValue = 0;
+    Cell (final int theRow, final int theColumn, final int theId, final ValueStore theValues) {
         myFormula = ""; 
-        myInDegree = 0;
-        myOutDegree = 0;        
         myRow = theRow;
         myColumn = theColumn;
-        myAdjacents = new LinkedList<Cell>();
-        myDependencies = new LinkedList<Cell>();        
+        myId = theId;
+        myValues = theValues;
+        // allocates the value's chunk on the thread creating cells
+        myValues.set(myRow, myColumn, 0);
+    }
+    
+    /**
+     * Creates a cell loaded from a snapshot, holding its value right away.
+     * Its formula and dependency edges are decoded on first use.
+     *
+     * @param theRow the row of the cell.
+     * @param theColumn the column of the cell.
+     * @param theId the id of the cell, its index in the snapshot.
+     * @param theValues the values of its spreadsheet.
+     * @param theSnapshot the snapshot
+     */
+    Cell (final int theRow, final int theColumn, final int theId, final ValueStore theValues,
+          final SpreadsheetSnapshot theSnapshot) {
+        this(theRow, theColumn, theId, theValues);
+        myValues.set(myRow, myColumn, theSnapshot.value(theId));
+        mySnapshot = theSnapshot;
     }
     
     
     ///////////////////////////////// GETTERS //////////////////////////////////////////////////
     
     /**
-     * Gets the value of the cell.
+     * Gets the value of the cell. A stale value is computed first.
      * @return Value of the cell.
      */
     public int getValue() {
-        return myValue;
+        final Spreadsheet sheet = myStaleIn;
+        
+        if (sheet != null) {
+            sheet.pull(this);
+        }
+        return myValues.get(myRow, myColumn);
+    }
+    
+    /**
+     * Returns whether the value is out of date, see markStale.
+     * @return true if stale
+     */
+    boolean isStale() {
+        return myStaleIn != null;
+    }
+    
+    /**
+     * Gets the expression tree of the cell.
+     * @return ExpressionTree the expression tree, null if the cell has no formula
+     */
+    ExpressionTree getExpressionTree() {
+        decode();
+        return myExpressionTree;
+    }
+    
+    /**
+     * Gets the row of the cell.
+     * @return int the row
+     */
+    public int getRow() {
+        return myRow;
+    }
+    
+    /**
+     * Gets the column of the cell.
+     * @return int the column
+     */
+    public int getColumn() {
+        return myColumn;
+    }
+    
+    /**
+     * Gets the id of the cell in its spreadsheet.
+     * @return int the id
+     */
+    public int getId() {
+        return myId;
     }
     
     /**
@@ -98,6 +176,7 @@ public class Cell {
      * @return Formula of the cell.
      */
     public String getFormula() {
+        decode();
         return myFormula;
     }    
     
@@ -106,7 +185,8 @@ public class Cell {
      * @return int in-Degree
      */
     public int getInDegree() {
-        return myInDegree;
+        decode();
+        return myDependencies == null ? 0 : myDependencies.size();
     }    
 
     /**
@@ -123,23 +203,28 @@ public class Cell {
      * @return int the out-Degree
      */
     public int getOutDegree() {
-        return myOutDegree;
+        decode();
+        return myAdjacents == null ? 0 : myAdjacents.size();
     }    
     
     /**
-     * Returns the adjacent cells list.
-     * @return LinkedList the adjacent cells
+     * Returns the slots of the adjacent cell ids, 
+     * slots equal to IntSet.FREE are unused.
+     * @return int[] the adjacent cell id slots
      */
-    public LinkedList<Cell> getAdjacentCells() {        
-        return myAdjacents;
+    int[] adjacentIds() {        
+        decode();
+        return myAdjacents == null ? NO_IDS : myAdjacents.slots();
     }
     
     /**
-     * Returns the dependent cells list.
-     * @return LinkedList the dependent cells
+     * Returns the slots of the dependent cell ids, 
+     * slots equal to IntSet.FREE are unused.
+     * @return int[] the dependent cell id slots
      */
-    public LinkedList<Cell> getDependentCells() {
-        return myDependencies;
+    int[] dependencyIds() {
+        decode();
+        return myDependencies == null ? NO_IDS : myDependencies.slots();
     }
     
     
@@ -151,6 +236,7 @@ public class Cell {
      * @param theFormula The new formula
      */
     public void setFormula(final String theFormula) {
+        decode();
         myFormula = theFormula;        
     }    
     
@@ -159,9 +245,19 @@ public class Cell {
      * @param theTree the expression tree (formula)
      */
     public void setExpressionTree(final ExpressionTree theTree) {        
+        decode();
         myExpressionTree = theTree;           
     }   
     
+    /**
+     * Marks the value out of date, it is computed by theSpreadsheet 
+     * the next time it is read.
+     * @param theSpreadsheet the spreadsheet of the cell
+     */
+    void markStale(final Spreadsheet theSpreadsheet) {
+        myStaleIn = theSpreadsheet;
+    }
+    
     /**
      * Sets the in-Degree of this Cell to a value.
      * Used when topological sorting
@@ -177,13 +273,12 @@ public class Cell {
      * Resets cell to default.
      */
     public void reset() {
-        myValue = 0;
+        decode();
+        myValues.set(myRow, myColumn, 0);
         myFormula = ""; 
-        myInDegree = 0;
         myInDegreeSort = 0;
-        myOutDegree = 0;       
-        myAdjacents.clear();
-        myDependencies.clear();
+        myAdjacents = null;
+        myDependencies = null;
         myExpressionTree = null;        
     }
 
@@ -193,11 +288,12 @@ public class Cell {
      * @param theDependent the adjacent cell
      */
     public void addAdjacent(final Cell theAdjacent) {
+        decode();
         
-        if (myOutDegree == 0 || !myAdjacents.contains(theAdjacent)) {
-            myAdjacents.add(theAdjacent);
-            myOutDegree++;
+        if (myAdjacents == null) {
+            myAdjacents = new IntSet();
         }
+        myAdjacents.add(theAdjacent.myId);
     }
 
     /**
@@ -206,9 +302,14 @@ public class Cell {
      * @param theDependent the dependent cell
      */
     public void addDependent(final Cell theDependent) {         
-        myDependencies.add(theDependent);
-        myInDegree++;
-        myInDegreeSort++;
+        decode();
+        
+        if (myDependencies == null) {
+            myDependencies = new IntSet();
+        }
+        if (myDependencies.add(theDependent.myId)) {
+            myInDegreeSort++;
+        }
     }  
 
     /**
@@ -216,7 +317,10 @@ public class Cell {
      * @return boolean true if expression tree is not null
      */
     public boolean hasExpTree() {
-        return myExpressionTree != null;
+        final SpreadsheetSnapshot snapshot = mySnapshot;
+        
+        // answered without decoding the formula
+        return snapshot != null ? snapshot.hasFormula(myId) : myExpressionTree != null;
     }
     
     /**
@@ -224,8 +328,8 @@ public class Cell {
      * Resets in-degree to zero.
      */
     public void clearDependencies() {
-        myDependencies.clear();       
-        myInDegree = 0;
+        decode();
+        myDependencies = null;       
         myInDegreeSort = 0;
     }   
     
@@ -234,8 +338,10 @@ public class Cell {
      * @param theCell the cell to remove
      */
     public void removeAjacentCell(Cell theCell) {        
-        myAdjacents.remove(theCell);
-        myOutDegree--;       
+        decode();
+        if (myAdjacents != null) {
+            myAdjacents.remove(theCell.myId);
+        }
     }
     
     /**
@@ -243,7 +349,8 @@ public class Cell {
      * after sorting.
      */
     public void resetInDegreeSort() {        
-        myInDegreeSort = myInDegree;        
+        decode();
+        myInDegreeSort = getInDegree();        
     }
   
     /**
@@ -251,22 +358,33 @@ public class Cell {
      * @param theSpreadsheet the current SpreadSheet
      */
     public void evaluate (Spreadsheet theSpreadsheet) {
+        decode();
         
         // evaluate tree if contains anything 
-        // otherwise myValue is 0
+        // otherwise the value is 0
         if (myExpressionTree != null) {
-            myValue = myExpressionTree.evaluate(theSpreadsheet);       
+            myValues.set(myRow, myColumn, myExpressionTree.evaluate(theSpreadsheet));       
+            
+            if (theSpreadsheet.isTieredCompilation() && 
+                    myExpressionTree.countEvaluation(theSpreadsheet.getPromotionThreshold())) {
+                theSpreadsheet.cellPromoted(this);
+            }
+        } else {
+            myValues.set(myRow, myColumn, 0);
         }       
+        myStaleIn = null;
+        theSpreadsheet.cellEvaluated(this);
     }   
 
     
     @Override
     public String toString() {
+        decode();
         
         if (myExpressionTree == null) {           
             return myFormula;
         } else {             
-            return Integer.toString(myValue);
+            return Integer.toString(getValue());
         }
     }
     
@@ -297,6 +415,36 @@ public class Cell {
                 Integer.compare(this.myColumn, other.myColumn) == 0;      
         
     }
+    
+    @Override
+    /**
+     * {@inheritDoc}
+     * 
+     * Consistent with equals, used when cells are kept in hash sets.
+     */
+    public int hashCode() {
+        return 31 * myRow + myColumn;
+    }
+    
+    /**
+     * Decodes the formula and dependency edges of a cell loaded from a
+     * snapshot, on its first use. Does nothing for other cells.
+     */
+    private void decode() {
+        if (mySnapshot == null) {
+            return;
+        }
+        synchronized (this) {
+            final SpreadsheetSnapshot snapshot = mySnapshot;
+            
+            if (snapshot != null) {
+                myFormula = snapshot.formula(myId);
+                myExpressionTree = snapshot.expressionTree(myId);
+                myAdjacents = snapshot.dependents(myId);
+                myDependencies = snapshot.precedents(myId);
+                myInDegreeSort = myDependencies == null ? 0 : myDependencies.size();
+                mySnapshot = null;
+            }
+        }
+    }
 }
-
-
@@ -0,0 +1,220 @@
+package spreadsheet;
+
+
+/**
+ * Cell locations packed into a long, and the labels they appear as on
+ * the spreadsheet, e.g. A3 or AE34.
+ *
+ * The row is the high int of an address and the column the low int, so
+ * both are taken apart without arithmetic and addresses order by row,
+ * then by column. Every location has a non-negative address, NONE is
+ * no location at all.
+ *
+ * Formatting and parsing labels allocates nothing but the label itself:
+ * the label of each column is computed once and cached.
+ *
+ * @author Dmitriy Onishchenko
+ * @version 26 February 2016
+ */
+public final class CellAddress {
+
+    /**
+     * The address of no location, e.g. of a label that does not parse.
+     */
+    public static final long NONE = -1L;
+
+    /**
+     * Number of letters of the label of the largest int column.
+     */
+    private static final int MAX_LETTERS = 7;
+
+    /**
+     * Labels of the columns of the spreadsheet, filled as they are used.
+     * Races only compute a label twice.
+     */
+    private static final String[] COLUMN_LABELS = new String[Spreadsheet.MAX_COLUMNS];
+
+
+    /**
+     * Not instantiable.
+     */
+    private CellAddress() {
+        throw new AssertionError();
+    }
+
+
+    /**
+     * Returns the address of a location.
+     * @param theRow the row
+     * @param theColumn the column
+     * @return long the address
+     */
+    public static long encode(final int theRow, final int theColumn) {
+        return ((long) theRow << Integer.SIZE) | (theColumn & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns the row of an address.
+     * @param theAddress the address
+     * @return int the row
+     */
+    public static int row(final long theAddress) {
+        return (int) (theAddress >>> Integer.SIZE);
+    }
+
+    /**
+     * Returns the column of an address.
+     * @param theAddress the address
+     * @return int the column
+     */
+    public static int column(final long theAddress) {
+        return (int) theAddress;
+    }
+
+    /**
+     * Returns the label of a column as it appears on the spreadsheet,
+     * A to Z, then AA to ZZ, then AAA and so on.
+     * @param theColumn the column, at least zero
+     * @return String the label
+     */
+    public static String columnLabel(final int theColumn) {
+
+        if (theColumn >= COLUMN_LABELS.length) {
+            return computeColumnLabel(theColumn);
+        }
+        String label = COLUMN_LABELS[theColumn];
+        if (label == null) {
+            label = computeColumnLabel(theColumn);
+            COLUMN_LABELS[theColumn] = label;
+        }
+        return label;
+    }
+
+    /**
+     * Returns the label of an address, e.g. "A3".
+     * @param theAddress the address
+     * @return String the label
+     */
+    public static String label(final long theAddress) {
+        return appendLabel(new StringBuilder(MAX_LETTERS + 8), theAddress).toString();
+    }
+
+    /**
+     * Appends the label of an address, e.g. "A3", to a StringBuilder.
+     * @param theBuilder the StringBuilder
+     * @param theAddress the address
+     * @return StringBuilder theBuilder
+     */
+    public static StringBuilder appendLabel(final StringBuilder theBuilder, final long theAddress) {
+        return theBuilder.append(columnLabel(column(theAddress))).append(row(theAddress));
+    }
+
+    /**
+     * Parses the label starting at an index of a text, after leading
+     * whitespace. A label is a sequence of letters (either case), the
+     * column, followed by a sequence of digits (0-9), the row. The letters
+     * refer to columns as follows: A = 0, B = 1, C = 2, ..., Z = 25,
+     * AA = 26, AB = 27, ..., AZ = 51, BA = 52, ..., ZA = 676, ...,
+     * ZZ = 701, AAA = 702.
+     *
+     * A row or column beyond the spreadsheet stays beyond it, whatever
+     * the number of digits or letters, so it is rejected by the bounds check.
+     * @param theText the text
+     * @param theStart the index of the first char to look at
+     * @return long the address, NONE if there is no label at theStart
+     */
+    public static long parse(final CharSequence theText, final int theStart) {
+
+        if (theStart < 0) {
+            return NONE;
+        }
+        int index = skipWhitespace(theText, theStart);
+        int column = -1;
+        int row = 0;
+
+        while (index < theText.length() && isColumnLetter(theText.charAt(index))) {
+            // stays out of bounds once past the last column, without overflowing
+            if (column < Spreadsheet.MAX_COLUMNS) {
+                column = ((column + 1) * 26) + (Character.toUpperCase(theText.charAt(index)) - 'A');
+            }
+            index++;
+        }
+        if (column < 0 || index == theText.length() || !Character.isDigit(theText.charAt(index))) {
+            return NONE;
+        }
+
+        while (index < theText.length() && Character.isDigit(theText.charAt(index))) {
+            if (row < Spreadsheet.MAX_ROWS) {
+                row = (row * 10) + (theText.charAt(index) - '0');
+            }
+            index++;
+        }
+        return encode(row, column);
+    }
+
+    /**
+     * Returns the index just after the label parse reads at an index of
+     * a text.
+     * @param theText the text
+     * @param theStart the index of the first char of the label or of
+     *        the whitespace before it
+     * @return int the index after the label
+     */
+    public static int labelEnd(final CharSequence theText, final int theStart) {
+
+        int index = skipWhitespace(theText, theStart);
+
+        while (index < theText.length() && isColumnLetter(theText.charAt(index))) {
+            index++;
+        }
+        while (index < theText.length() && Character.isDigit(theText.charAt(index))) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Returns whether ch is a letter of a column label, A-Z in either case.
+     * @param ch a char
+     * @return true if ch is a column letter
+     */
+    static boolean isColumnLetter(final char ch) {
+        return (ch >= 'A' && ch <= 'Z') || (ch >= 'a' && ch <= 'z');
+    }
+
+
+    /////////////////////////// PRIVATE HELPER METHODS //////////////////////////////////////
+
+
+    /**
+     * Computes the label of a column, base 26 with digits A to Z and no zero.
+     * @param theColumn the column
+     * @return String the label
+     */
+    private static String computeColumnLabel(final int theColumn) {
+
+        final char[] label = new char[MAX_LETTERS];
+        int index = label.length;
+
+        for (int col = theColumn + 1; col > 0; col = (col - 1) / 26) {
+            label[--index] = (char) ('A' + (col - 1) % 26);
+        }
+        return new String(label, index, label.length - index);
+    }
+
+    /**
+     * Returns the index of the first char at or after theIndex that
+     * is not whitespace.
+     * @param theText the text
+     * @param theIndex the index to start at
+     * @return int the index, the length of the text if there is none
+     */
+    private static int skipWhitespace(final CharSequence theText, final int theIndex) {
+        int index = theIndex;
+
+        while (index < theText.length() && Character.isWhitespace(theText.charAt(index))) {
+            index++;
+        }
+        return index;
+    }
+}
@@ -0,0 +1,204 @@
+package spreadsheet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Sparse grid from a cell location to the Cell stored there. Locations
+ * are grouped into chunks of CHUNK_ROWS by CHUNK_COLUMNS, and a chunk is
+ * only allocated once a cell is stored inside it. A lookup is three array
+ * reads and allocates nothing.
+ *
+ * Growing the grid never moves a chunk: only the directories of chunks
+ * grow, so the cost of growth does not depend on the number of cells.
+ *
+ * @author Dmitriy Onishchenko
+ * @version 26 February 2016
+ */
+class CellMap {
+
+    /**
+     * Log2 of the number of rows of a chunk.
+     */
+    private static final int ROW_BITS = 6;
+
+    /**
+     * Log2 of the number of columns of a chunk.
+     */
+    private static final int COLUMN_BITS = 4;
+
+    /**
+     * Number of rows of a chunk.
+     */
+    static final int CHUNK_ROWS = 1 << ROW_BITS;
+
+    /**
+     * Number of columns of a chunk.
+     */
+    static final int CHUNK_COLUMNS = 1 << COLUMN_BITS;
+
+    /**
+     * Initial number of entries of a directory.
+     */
+    private static final int INITIAL_DIRECTORY = 4;
+
+    /**
+     * The chunks by row band and column band, null where nothing is stored.
+     */
+    private Cell[][][] myChunks;
+
+    /**
+     * Number of cells in the map.
+     */
+    private int mySize;
+
+
+    /**
+     * Constructor.
+     */
+    CellMap() {
+        myChunks = new Cell[INITIAL_DIRECTORY][][];
+    }
+
+
+    /**
+     * Returns the number of cells in the map.
+     * @return int the number of cells
+     */
+    int size() {
+        return mySize;
+    }
+
+    /**
+     * Returns the cell at the location or null if there is none.
+     * @param theRow the row, not negative
+     * @param theColumn the column, not negative
+     * @return Cell the cell or null
+     */
+    Cell get(final int theRow, final int theColumn) {
+        final int band = theRow >>> ROW_BITS;
+        final int slice = theColumn >>> COLUMN_BITS;
+
+        if (band >= myChunks.length || myChunks[band] == null || slice >= myChunks[band].length) {
+            return null;
+        }
+        final Cell[] chunk = myChunks[band][slice];
+        return chunk == null ? null : chunk[offset(theRow, theColumn)];
+    }
+
+    /**
+     * Stores the cell at its location, replacing any previous one.
+     * @param theCell the cell
+     */
+    void put(final Cell theCell) {
+        final int row = theCell.getRow();
+        final int column = theCell.getColumn();
+        final int band = row >>> ROW_BITS;
+        final int slice = column >>> COLUMN_BITS;
+
+        if (band >= myChunks.length) {
+            myChunks = Arrays.copyOf(myChunks, grown(myChunks.length, band));
+        }
+        Cell[][] chunks = myChunks[band];
+        if (chunks == null) {
+            chunks = new Cell[grown(INITIAL_DIRECTORY, slice)][];
+            myChunks[band] = chunks;
+        } else if (slice >= chunks.length) {
+            chunks = Arrays.copyOf(chunks, grown(chunks.length, slice));
+            myChunks[band] = chunks;
+        }
+        if (chunks[slice] == null) {
+            chunks[slice] = new Cell[CHUNK_ROWS * CHUNK_COLUMNS];
+        }
+
+        final Cell[] chunk = chunks[slice];
+        final int offset = offset(row, column);
+        if (chunk[offset] == null) {
+            mySize++;
+        }
+        chunk[offset] = theCell;
+    }
+
+    /**
+     * Removes every cell.
+     */
+    void clear() {
+        myChunks = new Cell[INITIAL_DIRECTORY][][];
+        mySize = 0;
+    }
+
+    /**
+     * Returns a list of all cells in the map, in no particular order.
+     * @return List the cells
+     */
+    List<Cell> values() {
+        final List<Cell> cells = new ArrayList<Cell>(mySize);
+
+        for (Cell[][] chunks: myChunks) {
+            if (chunks == null) {
+                continue;
+            }
+            for (Cell[] chunk: chunks) {
+                if (chunk == null) {
+                    continue;
+                }
+                for (Cell c: chunk) {
+                    if (c != null) {
+                        cells.add(c);
+                    }
+                }
+            }
+        }
+        return cells;
+    }
+
+    /**
+     * Returns the cells of one column, in row order.
+     * @param theColumn the column
+     * @return List the cells
+     */
+    List<Cell> column(final int theColumn) {
+        final List<Cell> cells = new ArrayList<Cell>();
+        final int slice = theColumn >>> COLUMN_BITS;
+
+        for (Cell[][] chunks: myChunks) {
+            if (chunks == null || slice >= chunks.length || chunks[slice] == null) {
+                continue;
+            }
+            for (int row = 0; row < CHUNK_ROWS; row++) {
+                final Cell c = chunks[slice][offset(row, theColumn)];
+                if (c != null) {
+                    cells.add(c);
+                }
+            }
+        }
+        return cells;
+    }
+
+
+    /////////////////////////// PRIVATE HELPER METHODS //////////////////////////////////////
+
+
+    /**
+     * Returns the index of a location inside its chunk.
+     * @param theRow the row
+     * @param theColumn the column
+     * @return int the index
+     */
+    private static int offset(final int theRow, final int theColumn) {
+        return (theRow & (CHUNK_ROWS - 1)) << COLUMN_BITS | (theColumn & (CHUNK_COLUMNS - 1));
+    }
+
+    /**
+     * Returns the new length of a directory that must hold theIndex,
+     * doubled so that growing it is amortized O(1).
+     * @param theLength the current length
+     * @param theIndex the index to hold
+     * @return int the new length
+     */
+    private static int grown(final int theLength, final int theIndex) {
+        return Math.max(theIndex + 1, 2 * theLength);
+    }
+}
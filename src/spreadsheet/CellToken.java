@@ -80,41 +80,16 @@ public class CellToken extends Token {
      *  @return  the cellToken's coordinates
      */
     public static String printCellToken (CellToken cellToken) {
-        char ch;
-        String returnString = "";
-        int col;
-        int largest = 26;  // minimum col number with number_of_digits digits
-        int number_of_digits = 2;
-
-        col = cellToken.getColumn();
-
-        // compute the biggest power of 26 that is less than or equal to col
-        // We don't check for overflow of largest here.
-        while (largest <= col) {
-            largest = largest * 26;
-            number_of_digits++;
-        }
-        largest = largest / 26;
-        number_of_digits--;
-
-        // append the column label, one character at a time
-        while (number_of_digits > 1) {
-            ch =  (char) (((col / largest) - 1) + 'A');
-            returnString += ch;
-            col = col % largest;
-            largest = largest  / 26;
-            number_of_digits--;
-        }
-
-        // handle last digit
-        ch = (char) (col + 'A');
-        returnString += ch;
-
-        // append the row as an integer
-        returnString += cellToken.getRow();
-
-        return returnString;
-    }   
+        return CellAddress.label(cellToken.getAddress());
+    }
+    
+    /**
+     * Returns the location of the Cell packed into a long, see CellAddress.
+     * @return long the address
+     */
+    public long getAddress() {
+        return CellAddress.encode(row, column);
+    }
     
     @Override
     /**    
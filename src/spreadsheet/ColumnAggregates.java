@@ -0,0 +1,423 @@
+package spreadsheet;
+
+import java.util.Arrays;
+
+
+/**
+ * Range aggregates over the rows of one column, kept up to date as cell
+ * values change. Rows are grouped into chunks of CHUNK_ROWS, and a chunk
+ * is only allocated once a row inside it counts, like the chunks of
+ * CellMap and ValueStore. Over the chunks, sums and counts are Fenwick
+ * trees and minimums and maximums are segment trees, so both an update
+ * and a query over any row interval take O(log n) plus a scan of at most
+ * two chunks, instead of a scan of the interval.
+ *
+ * Only cells holding a formula count, other rows are left out of every
+ * aggregate. Memory grows with the rows up to the last counted one, a
+ * few bytes per row for the trees and a chunk per group of rows that
+ * hold formulas. Methods are synchronized because the cells of one
+ * dependency level may be evaluated in parallel.
+ *
+ * @author Dmitriy Onishchenko
+ * @version 26 February 2016
+ */
+class ColumnAggregates {
+
+    /**
+     * Log2 of the number of rows of a chunk.
+     */
+    private static final int ROW_BITS = 6;
+
+    /**
+     * Number of rows of a chunk, one bit of a long per row.
+     */
+    private static final int CHUNK_ROWS = 1 << ROW_BITS;
+
+    /**
+     * Number of chunks covered, a power of two.
+     */
+    private int myCapacity;
+
+    /**
+     * Current value of each row by chunk, 0 for rows that do not count,
+     * null for chunks without a counted row so far.
+     */
+    private int[][] myChunks;
+
+    /**
+     * Counted rows of each chunk, one bit per row.
+     */
+    private long[] myCounted;
+
+    /**
+     * Fenwick tree of the sums of the chunks, 1-based.
+     */
+    private long[] mySums;
+
+    /**
+     * Fenwick tree of the counted rows of the chunks, 1-based.
+     */
+    private int[] myCounts;
+
+    /**
+     * Segment tree of minimums, leaves at myCapacity + chunk.
+     */
+    private int[] myMins;
+
+    /**
+     * Segment tree of maximums, leaves at myCapacity + chunk.
+     */
+    private int[] myMaxs;
+
+
+    /**
+     * Constructor for a column with no counted rows.
+     * @param theRows the number of rows to cover at first
+     */
+    ColumnAggregates(final int theRows) {
+        myCapacity = capacity(1, chunk(Math.max(1, theRows) - 1) + 1);
+        myChunks = new int[myCapacity][];
+        myCounted = new long[myCapacity];
+        rebuild();
+    }
+
+
+    /**
+     * Sets the value of a row.
+     * @param theRow the row
+     * @param theCounted whether the row counts towards the aggregates
+     * @param theValue the value
+     */
+    synchronized void update(final int theRow, final boolean theCounted, final int theValue) {
+
+        final int value = theCounted ? theValue : 0;
+        final int chunk = chunk(theRow);
+        final long bit = 1L << theRow;
+
+        if (chunk >= myCapacity || myChunks[chunk] == null) {
+            if (!theCounted) {
+                return;
+            }
+            if (chunk >= myCapacity) {
+                grow(chunk + 1);
+            }
+            myChunks[chunk] = new int[CHUNK_ROWS];
+        }
+
+        final int[] values = myChunks[chunk];
+        final int index = theRow & (CHUNK_ROWS - 1);
+        final long delta = (long) value - values[index];
+        final boolean wasCounted = (myCounted[chunk] & bit) != 0;
+        final int countDelta = (theCounted ? 1 : 0) - (wasCounted ? 1 : 0);
+
+        if (delta == 0 && countDelta == 0) {
+            return;
+        }
+        values[index] = value;
+        myCounted[chunk] = theCounted ? myCounted[chunk] | bit : myCounted[chunk] & ~bit;
+
+        for (int i = chunk + 1; i <= myCapacity; i += i & -i) {
+            mySums[i] += delta;
+            myCounts[i] += countDelta;
+        }
+
+        int node = myCapacity + chunk;
+        myMins[node] = scanMin(chunk, 0, CHUNK_ROWS - 1);
+        myMaxs[node] = scanMax(chunk, 0, CHUNK_ROWS - 1);
+        for (node >>= 1; node > 0; node >>= 1) {
+            myMins[node] = Math.min(myMins[2 * node], myMins[2 * node + 1]);
+            myMaxs[node] = Math.max(myMaxs[2 * node], myMaxs[2 * node + 1]);
+        }
+    }
+
+    /**
+     * Returns the sum of the counted rows from theFirst to theLast, inclusive.
+     * @param theFirst the first row
+     * @param theLast the last row
+     * @return long the sum
+     */
+    synchronized long sum(final int theFirst, final int theLast) {
+        final int last = clamp(theLast);
+
+        if (theFirst > last) {
+            return 0;
+        }
+        final int first = chunk(theFirst);
+        final int end = chunk(last);
+
+        if (first == end) {
+            return scanSum(first, theFirst, last);
+        }
+        return scanSum(first, theFirst, CHUNK_ROWS - 1)
+                + prefixSum(end) - prefixSum(first + 1)
+                + scanSum(end, 0, last);
+    }
+
+    /**
+     * Returns the number of counted rows from theFirst to theLast, inclusive.
+     * @param theFirst the first row
+     * @param theLast the last row
+     * @return int the count
+     */
+    synchronized int count(final int theFirst, final int theLast) {
+        final int last = clamp(theLast);
+
+        if (theFirst > last) {
+            return 0;
+        }
+        final int first = chunk(theFirst);
+        final int end = chunk(last);
+
+        if (first == end) {
+            return scanCount(first, theFirst, last);
+        }
+        return scanCount(first, theFirst, CHUNK_ROWS - 1)
+                + prefixCount(end) - prefixCount(first + 1)
+                + scanCount(end, 0, last);
+    }
+
+    /**
+     * Returns the minimum of the counted rows from theFirst to theLast,
+     * Integer.MAX_VALUE if there is none.
+     * @param theFirst the first row
+     * @param theLast the last row
+     * @return int the minimum
+     */
+    synchronized int min(final int theFirst, final int theLast) {
+        final int last = clamp(theLast);
+
+        if (theFirst > last) {
+            return Integer.MAX_VALUE;
+        }
+        final int first = chunk(theFirst);
+        final int end = chunk(last);
+
+        if (first == end) {
+            return scanMin(first, theFirst, last);
+        }
+        int result = Math.min(scanMin(first, theFirst, CHUNK_ROWS - 1), scanMin(end, 0, last));
+
+        for (int lo = first + 1 + myCapacity, hi = end + myCapacity; lo < hi; lo >>= 1, hi >>= 1) {
+            if ((lo & 1) == 1) {
+                result = Math.min(result, myMins[lo++]);
+            }
+            if ((hi & 1) == 1) {
+                result = Math.min(result, myMins[--hi]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the maximum of the counted rows from theFirst to theLast,
+     * Integer.MIN_VALUE if there is none.
+     * @param theFirst the first row
+     * @param theLast the last row
+     * @return int the maximum
+     */
+    synchronized int max(final int theFirst, final int theLast) {
+        final int last = clamp(theLast);
+
+        if (theFirst > last) {
+            return Integer.MIN_VALUE;
+        }
+        final int first = chunk(theFirst);
+        final int end = chunk(last);
+
+        if (first == end) {
+            return scanMax(first, theFirst, last);
+        }
+        int result = Math.max(scanMax(first, theFirst, CHUNK_ROWS - 1), scanMax(end, 0, last));
+
+        for (int lo = first + 1 + myCapacity, hi = end + myCapacity; lo < hi; lo >>= 1, hi >>= 1) {
+            if ((lo & 1) == 1) {
+                result = Math.max(result, myMaxs[lo++]);
+            }
+            if ((hi & 1) == 1) {
+                result = Math.max(result, myMaxs[--hi]);
+            }
+        }
+        return result;
+    }
+
+
+    /////////////////////////// PRIVATE HELPER METHODS //////////////////////////////////////
+
+
+    /**
+     * Returns the chunk of a row.
+     * @param theRow the row
+     * @return int the chunk
+     */
+    private static int chunk(final int theRow) {
+        return theRow >>> ROW_BITS;
+    }
+
+    /**
+     * Returns the power of two capacity, at least theCapacity, that
+     * holds theChunks chunks.
+     * @param theCapacity the current capacity
+     * @param theChunks the number of chunks to hold
+     * @return int the capacity
+     */
+    private static int capacity(final int theCapacity, final int theChunks) {
+        int capacity = theCapacity;
+        while (capacity < theChunks) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * Limits a row to the covered rows, rows past them do not count.
+     * @param theRow the row
+     * @return int the row, at most the last covered row
+     */
+    private int clamp(final int theRow) {
+        return Math.min(theRow, myCapacity * CHUNK_ROWS - 1);
+    }
+
+    /**
+     * Returns the sum of the counted rows of a chunk from theFirst to
+     * theLast, which are taken inside the chunk.
+     * @param theChunk the chunk
+     * @param theFirst the first row
+     * @param theLast the last row
+     * @return long the sum
+     */
+    private long scanSum(final int theChunk, final int theFirst, final int theLast) {
+        final int[] values = myChunks[theChunk];
+        long sum = 0;
+
+        if (values != null) {
+            // rows that do not count hold 0
+            for (int i = theFirst & (CHUNK_ROWS - 1); i <= (theLast & (CHUNK_ROWS - 1)); i++) {
+                sum += values[i];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the number of counted rows of a chunk from theFirst to
+     * theLast, which are taken inside the chunk.
+     * @param theChunk the chunk
+     * @param theFirst the first row
+     * @param theLast the last row
+     * @return int the count
+     */
+    private int scanCount(final int theChunk, final int theFirst, final int theLast) {
+        return Long.bitCount(myCounted[theChunk] & mask(theFirst, theLast));
+    }
+
+    /**
+     * Returns the minimum of the counted rows of a chunk from theFirst to
+     * theLast, which are taken inside the chunk.
+     * @param theChunk the chunk
+     * @param theFirst the first row
+     * @param theLast the last row
+     * @return int the minimum, Integer.MAX_VALUE if there is none
+     */
+    private int scanMin(final int theChunk, final int theFirst, final int theLast) {
+        int result = Integer.MAX_VALUE;
+
+        for (long rows = myCounted[theChunk] & mask(theFirst, theLast); rows != 0; rows &= rows - 1) {
+            result = Math.min(result, myChunks[theChunk][Long.numberOfTrailingZeros(rows)]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the maximum of the counted rows of a chunk from theFirst to
+     * theLast, which are taken inside the chunk.
+     * @param theChunk the chunk
+     * @param theFirst the first row
+     * @param theLast the last row
+     * @return int the maximum, Integer.MIN_VALUE if there is none
+     */
+    private int scanMax(final int theChunk, final int theFirst, final int theLast) {
+        int result = Integer.MIN_VALUE;
+
+        for (long rows = myCounted[theChunk] & mask(theFirst, theLast); rows != 0; rows &= rows - 1) {
+            result = Math.max(result, myChunks[theChunk][Long.numberOfTrailingZeros(rows)]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the bits of the rows of a chunk from theFirst to theLast,
+     * which are taken inside the chunk.
+     * @param theFirst the first row
+     * @param theLast the last row
+     * @return long the bits
+     */
+    private static long mask(final int theFirst, final int theLast) {
+        return (-1L << theFirst) & (-1L >>> (CHUNK_ROWS - 1 - (theLast & (CHUNK_ROWS - 1))));
+    }
+
+    /**
+     * Returns the sum of the first theChunks chunks.
+     * @param theChunks the number of chunks
+     * @return long the sum
+     */
+    private long prefixSum(final int theChunks) {
+        long sum = 0;
+        for (int i = theChunks; i > 0; i -= i & -i) {
+            sum += mySums[i];
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the number of counted rows among the first theChunks chunks.
+     * @param theChunks the number of chunks
+     * @return int the count
+     */
+    private int prefixCount(final int theChunks) {
+        int count = 0;
+        for (int i = theChunks; i > 0; i -= i & -i) {
+            count += myCounts[i];
+        }
+        return count;
+    }
+
+    /**
+     * Doubles the covered chunks until theChunks fit, keeping the values.
+     * Chunks are not copied, only the directories and the trees grow.
+     * @param theChunks the number of chunks to cover
+     */
+    private void grow(final int theChunks) {
+        myCapacity = capacity(myCapacity, theChunks);
+        myChunks = Arrays.copyOf(myChunks, myCapacity);
+        myCounted = Arrays.copyOf(myCounted, myCapacity);
+        rebuild();
+    }
+
+    /**
+     * Builds the trees from the chunks in O(n).
+     */
+    private void rebuild() {
+        mySums = new long[myCapacity + 1];
+        myCounts = new int[myCapacity + 1];
+        myMins = new int[2 * myCapacity];
+        myMaxs = new int[2 * myCapacity];
+
+        for (int chunk = 0; chunk < myCapacity; chunk++) {
+            mySums[chunk + 1] += scanSum(chunk, 0, CHUNK_ROWS - 1);
+            myCounts[chunk + 1] += Long.bitCount(myCounted[chunk]);
+
+            final int parent = (chunk + 1) + ((chunk + 1) & -(chunk + 1));
+            if (parent <= myCapacity) {
+                mySums[parent] += mySums[chunk + 1];
+                myCounts[parent] += myCounts[chunk + 1];
+            }
+
+            myMins[myCapacity + chunk] = scanMin(chunk, 0, CHUNK_ROWS - 1);
+            myMaxs[myCapacity + chunk] = scanMax(chunk, 0, CHUNK_ROWS - 1);
+        }
+        for (int node = myCapacity - 1; node > 0; node--) {
+            myMins[node] = Math.min(myMins[2 * node], myMins[2 * node + 1]);
+            myMaxs[node] = Math.max(myMaxs[2 * node], myMaxs[2 * node + 1]);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package spreadsheet;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+/**
+ * Flight Recorder event of the dependency edges of a cell being replaced
+ * after its formula changed, see Spreadsheet.updateCellDependency.
+ *
+ * @author Dmitriy Onishchenko
+ * @version 26 February 2016
+ */
+@Name("spreadsheet.DependencyUpdate")
+@Label("Dependency Update")
+@Category("Spreadsheet")
+@Description("The precedents and ranges of a cell replaced")
+@StackTrace(false)
+final class DependencyUpdateEvent extends jdk.jfr.Event {
+
+    /**
+     * The address of the cell, e.g. B3.
+     */
+    @Label("Cell")
+    String cell;
+
+    /**
+     * Number of cells the new formula refers to.
+     */
+    @Label("Precedents")
+    int precedents;
+
+    /**
+     * Number of ranges the new formula refers to.
+     */
+    @Label("Ranges")
+    int ranges;
+}
@@ -0,0 +1,409 @@
+package spreadsheet;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+
+/**
+ * Append-only write-ahead journal of the cell edits of a Spreadsheet,
+ * for crash recovery without dumping the whole sheet after every edit.
+ *
+ * A spreadsheet given a journal with setJournal appends one record per
+ * edited cell, holding what the cell holds after the edit. Appending
+ * only copies the record into a memory buffer. The buffer is written
+ * and forced to disk as one group commit every sync interval by a
+ * background thread, or on every edit when the interval is 0, so an
+ * edit costs microseconds and a crash loses at most one interval.
+ *
+ * Recovery loads the last snapshot and replays the journal on top of it,
+ * compaction folds the journal into a new snapshot and empties it.
+ * Records carry a checksum, a record torn by a crash ends the journal.
+ *
+ * Record layout, all ints big-endian:
+ * <pre>
+ * length, CRC32 of the payload,
+ * payload: kind, row, column, chars of the content
+ * </pre>
+ *
+ * @author Dmitriy Onishchenko
+ * @version 26 February 2016
+ */
+public final class EditJournal implements Closeable {
+
+    /**
+     * Record of a cell holding plain text.
+     */
+    static final byte TEXT = 0;
+
+    /**
+     * Record of a cell holding a formula.
+     */
+    static final byte FORMULA = 1;
+
+    /**
+     * Record of the spreadsheet being cleared.
+     */
+    static final byte CLEAR = 2;
+
+    /**
+     * Number of bytes of a record before its content.
+     */
+    private static final int RECORD_HEADER = 17;
+
+    /**
+     * Initial size of the buffer of pending records.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * The journal file, opened for appending. Writers hold its lock.
+     */
+    private final FileChannel myChannel;
+
+    /**
+     * Milliseconds between group commits, 0 to commit every record.
+     */
+    private final long mySyncInterval;
+
+    /**
+     * The background thread committing pending records, null if
+     * every record is committed right away.
+     */
+    private final Thread myFlusher;
+
+    /**
+     * Records appended but not yet written, guarded by this.
+     */
+    private byte[] myPending;
+
+    /**
+     * Number of bytes in myPending.
+     */
+    private int myPendingSize;
+
+    /**
+     * The failure of the last background commit, reported by the next sync.
+     */
+    private IOException myFailure;
+
+    /**
+     * True once closed.
+     */
+    private volatile boolean myClosed;
+
+
+    /**
+     * Opens a journal, appending to the file if it exists. Recover the
+     * spreadsheet from the file first, see recover.
+     * @param theFile the journal file
+     * @param theSyncInterval milliseconds between group commits,
+     *        0 to write and force every record as it is appended
+     * @throws IOException if the file cannot be opened
+     */
+    public EditJournal(final Path theFile, final long theSyncInterval) throws IOException {
+
+        if (theSyncInterval < 0) {
+            throw new IllegalArgumentException("Sync interval must not be negative");
+        }
+        myChannel = FileChannel.open(theFile, StandardOpenOption.CREATE,
+                                     StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        mySyncInterval = theSyncInterval;
+        myPending = new byte[BUFFER_SIZE];
+
+        if (theSyncInterval == 0) {
+            myFlusher = null;
+        } else {
+            myFlusher = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    flushLoop();
+                }
+            }, "Edit journal " + theFile.getFileName());
+            myFlusher.setDaemon(true);
+            myFlusher.start();
+        }
+    }
+
+
+    /**
+     * Loads theSheet from the last snapshot, if there is one, and replays
+     * the journal on top of it as one batch. A torn record at the end of
+     * the journal is cut off so that new records can follow the valid ones.
+     * Edits whose formula cannot be evaluated, e.g. a division by zero,
+     * are recovered too, the recalculation stops at them.
+     * @param theSheet the spreadsheet, its journal must not be set yet
+     * @param theSnapshot the last snapshot, see SpreadsheetSnapshot
+     * @param theJournal the journal file
+     * @return int the number of records replayed
+     * @throws IOException if a file cannot be read or a record does not apply
+     */
+    public static int recover(final Spreadsheet theSheet, final Path theSnapshot,
+                              final Path theJournal) throws IOException {
+
+        if (Files.exists(theSnapshot)) {
+            SpreadsheetSnapshot.read(theSheet, theSnapshot);
+        }
+        if (!Files.exists(theJournal)) {
+            return 0;
+        }
+
+        Spreadsheet.Batch batch = theSheet.new Batch();
+        final CellToken location = new CellToken();
+        final CRC32 crc = new CRC32();
+        byte[] payload = new byte[BUFFER_SIZE];
+        long valid = 0;
+        int records = 0;
+
+        try (FileChannel channel = FileChannel.open(theJournal, StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE)) {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(channel), BUFFER_SIZE));
+
+            try {
+                while (true) {
+                    final int length = in.readInt();
+                    final int checksum = in.readInt();
+                    if (length < RECORD_HEADER - 8 || valid + 8 + length > channel.size()) {
+                        break;
+                    }
+                    if (length > payload.length) {
+                        payload = new byte[length];
+                    }
+                    in.readFully(payload, 0, length);
+                    crc.reset();
+                    crc.update(payload, 0, length);
+                    if ((int) crc.getValue() != checksum) {
+                        break;
+                    }
+
+                    final ByteBuffer record = ByteBuffer.wrap(payload, 0, length);
+                    final byte kind = record.get();
+                    location.setRow(record.getInt());
+                    location.setColumn(record.getInt());
+                    final String content = record.asCharBuffer().toString();
+
+                    if (kind == CLEAR) {
+                        // nothing journaled before a clear matters
+                        batch.rollback();
+                        theSheet.clear();
+                        batch = theSheet.new Batch();
+                    } else if (kind == FORMULA) {
+                        batch.set(location, "=" + content);
+                    } else {
+                        batch.setText(location, content);
+                    }
+                    valid += 8 + length;
+                    records++;
+                }
+            } catch (final EOFException e) {
+                // the end of the journal, possibly inside a torn record
+            }
+
+            if (valid < channel.size()) {
+                channel.truncate(valid);
+                channel.force(true);
+            }
+        } catch (final FormulaParseException | IndexOutOfBoundsException e) {
+            batch.rollback();
+            throw new IOException("Journal record " + records + " does not apply: "
+                                  + e.getMessage(), e);
+        } catch (final IOException e) {
+            batch.rollback();
+            throw e;
+        }
+
+        try {
+            if (!batch.commit()) {
+                throw new IOException("Journal creates a cycle");
+            }
+        } catch (final ArithmeticException e) {
+            // journaled before it was evaluated, a formula such as 1/0 is
+            // recovered as it was kept when edited, without its value
+        }
+        return records;
+    }
+
+    /**
+     * Folds the journal into a new snapshot of theSheet and empties it.
+     * The snapshot is written next to theSnapshot and then moved over it,
+     * so a crash in between leaves the old snapshot and the full journal.
+     * Call it from the thread editing theSheet.
+     * @param theSheet the spreadsheet this journal records
+     * @param theSnapshot the snapshot to replace
+     * @throws IOException if the snapshot cannot be written
+     */
+    public void compact(final Spreadsheet theSheet, final Path theSnapshot) throws IOException {
+
+        final Path temp = theSnapshot.resolveSibling(theSnapshot.getFileName() + ".tmp");
+        SpreadsheetSnapshot.write(theSheet, temp);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+
+        synchronized (myChannel) {
+            Files.move(temp, theSnapshot, StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            // every pending record is part of the snapshot
+            synchronized (this) {
+                myPendingSize = 0;
+            }
+            myChannel.truncate(0);
+            myChannel.force(true);
+        }
+    }
+
+    /**
+     * Writes and forces every pending record.
+     * @throws IOException if writing fails, or a background commit failed
+     */
+    public void sync() throws IOException {
+        synchronized (myChannel) {
+            final IOException failure;
+            synchronized (this) {
+                failure = myFailure;
+                myFailure = null;
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            commit();
+        }
+    }
+
+    /**
+     * Commits the pending records and closes the file.
+     * @throws IOException if the last commit fails
+     */
+    @Override
+    public void close() throws IOException {
+        if (myClosed) {
+            return;
+        }
+        myClosed = true;
+        if (myFlusher != null) {
+            myFlusher.interrupt();
+        }
+        try {
+            sync();
+        } finally {
+            myChannel.close();
+        }
+    }
+
+
+    /////////////////////////// PACKAGE METHODS //////////////////////////////////////
+
+
+    /**
+     * Appends a record, committed with the next group commit.
+     * @param theKind TEXT, FORMULA or CLEAR
+     * @param theRow the row of the edited cell
+     * @param theColumn the column of the edited cell
+     * @param theContent the text or formula the cell holds
+     */
+    void append(final byte theKind, final int theRow, final int theColumn,
+                final String theContent) {
+
+        if (myClosed) {
+            throw new IllegalStateException("Journal is closed");
+        }
+        final int length = RECORD_HEADER + 2 * theContent.length();
+
+        synchronized (this) {
+            if (myPendingSize + length > myPending.length) {
+                myPending = Arrays.copyOf(myPending, Math.max(myPendingSize + length,
+                                                              2 * myPending.length));
+            }
+            final ByteBuffer record = ByteBuffer.wrap(myPending, myPendingSize, length);
+            record.position(myPendingSize + 8);
+            record.put(theKind);
+            record.putInt(theRow);
+            record.putInt(theColumn);
+            for (int i = 0; i < theContent.length(); i++) {
+                record.putChar(theContent.charAt(i));
+            }
+
+            final CRC32 crc = new CRC32();
+            crc.update(myPending, myPendingSize + 8, length - 8);
+            record.putInt(myPendingSize, length - 8);
+            record.putInt(myPendingSize + 4, (int) crc.getValue());
+            myPendingSize += length;
+        }
+
+        if (myFlusher == null) {
+            try {
+                sync();
+            } catch (final IOException e) {
+                synchronized (this) {
+                    myFailure = e;
+                }
+            }
+        }
+    }
+
+
+    /////////////////////////// PRIVATE HELPER METHODS //////////////////////////////////////
+
+
+    /**
+     * Writes and forces the pending records, the caller holds the lock
+     * of myChannel.
+     * @throws IOException if writing fails
+     */
+    private void commit() throws IOException {
+
+        final byte[] pending;
+        final int size;
+        synchronized (this) {
+            if (myPendingSize == 0) {
+                return;
+            }
+            // appends go on into a fresh buffer while this one is written
+            pending = myPending;
+            size = myPendingSize;
+            myPending = new byte[Math.max(BUFFER_SIZE, size)];
+            myPendingSize = 0;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.wrap(pending, 0, size);
+        while (buffer.hasRemaining()) {
+            myChannel.write(buffer);
+        }
+        myChannel.force(false);
+    }
+
+    /**
+     * Body of the background thread, one group commit per sync interval
+     * until the journal is closed.
+     */
+    private void flushLoop() {
+        while (!myClosed) {
+            try {
+                Thread.sleep(mySyncInterval);
+            } catch (final InterruptedException e) {
+                return;
+            }
+            synchronized (myChannel) {
+                try {
+                    commit();
+                } catch (final IOException e) {
+                    synchronized (this) {
+                        myFailure = e;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -1,5 +1,10 @@
 package spreadsheet;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * An expression tree as represented as a binary tree.
@@ -8,17 +13,140 @@ package spreadsheet;
  * @version 29 February 2016
  */
 public class ExpressionTree {
+    
+    /**
+     * Instruction pushing the literal in the next code word.
+     */
+    private static final int OP_LITERAL = 0;
+    
+    /**
+     * Instruction pushing the value of the cell whose address is in the
+     * next two code words, its row (high int) and column (low int).
+     */
+    private static final int OP_CELL = 1;
+    
+    /**
+     * Instruction popping two operands and pushing their sum.
+     */
+    private static final int OP_ADD = 2;
+    
+    /**
+     * Instruction popping two operands and pushing their difference.
+     */
+    private static final int OP_SUB = 3;
+    
+    /**
+     * Instruction popping two operands and pushing their product.
+     */
+    private static final int OP_MULT = 4;
+    
+    /**
+     * Instruction popping two operands and pushing their quotient.
+     */
+    private static final int OP_DIV = 5;
+    
+    /**
+     * Instruction popping two operands and pushing 0, used for an 
+     * operator that is not one of + - * /.
+     */
+    private static final int OP_DISCARD = 6;
+    
+    /**
+     * Instruction pushing an aggregate over a range, the next five
+     * code words are the function, first row, first column, last row
+     * and last column.
+     */
+    private static final int OP_RANGE = 7;
+    
+    /**
+     * Operator of each arithmetic instruction, indexed by instruction minus OP_ADD.
+     */
+    private static final char[] OPERATOR_CHARS = {
+        OperatorToken.Plus, OperatorToken.Minus, OperatorToken.Mult, OperatorToken.Div
+    };
+    
+    /**
+     * Code of an empty tree.
+     */
+    private static final int[] EMPTY_CODE = {};
+    
+    /**
+     * Type of a promoted expression, (Spreadsheet)int.
+     */
+    private static final MethodType EXPRESSION_TYPE = 
+            MethodType.methodType(int.class, Spreadsheet.class);
+    
+    /**
+     * Handle of Spreadsheet.getCellValue(long).
+     */
+    private static final MethodHandle CELL_VALUE;
+    
+    /**
+     * Handle of Spreadsheet.aggregate(int, int, int, int, int).
+     */
+    private static final MethodHandle AGGREGATE;
+    
+    /**
+     * Handles of the operators, indexed by instruction minus OP_ADD.
+     */
+    private static final MethodHandle[] OPERATORS;
+    
+    static {
+        final MethodHandles.Lookup lookup = MethodHandles.lookup();
+        final MethodType binary = MethodType.methodType(int.class, int.class, int.class);
+        
+        try {
+            CELL_VALUE = lookup.findVirtual(Spreadsheet.class, "getCellValue", 
+                    MethodType.methodType(int.class, long.class));
+            AGGREGATE = lookup.findVirtual(Spreadsheet.class, "aggregate", 
+                    MethodType.methodType(int.class, int.class, int.class, int.class, 
+                                          int.class, int.class));
+            OPERATORS = new MethodHandle[] {
+                lookup.findStatic(ExpressionTree.class, "add", binary),
+                lookup.findStatic(ExpressionTree.class, "sub", binary),
+                lookup.findStatic(ExpressionTree.class, "mult", binary),
+                lookup.findStatic(ExpressionTree.class, "div", binary),
+                lookup.findStatic(ExpressionTree.class, "discard", binary)
+            };
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
 	
     /**
      * The root of the tree.
      */
 	private ExpressionTreeNode root;
 	
+	/**
+	 * The tree compiled into postfix instructions, evaluated 
+	 * instead of walking the nodes.
+	 */
+	private int[] myCode;
+	
+	/**
+	 * Operand stack for evaluating myCode, sized to the deepest
+	 * point of the expression and reused by every evaluation.
+	 */
+	private int[] myOperands;
+	
+	/**
+	 * Number of evaluations counted towards promotion.
+	 */
+	private int myEvaluations;
+	
+	/**
+	 * The expression as a MethodHandle chain once promoted, otherwise null.
+	 */
+	private MethodHandle myPromoted;
+	
 	/**
 	 * Constructor.
 	 */
 	public ExpressionTree(){
 		root = null;
+		myCode = EMPTY_CODE;
+		myOperands = EMPTY_CODE;
 	}
 	
 	
@@ -30,6 +158,8 @@ public class ExpressionTree {
      */
     public void makeEmpty(){
         root = null;
+        myCode = EMPTY_CODE;
+        myOperands = EMPTY_CODE;
     }
     
     /**
@@ -60,8 +190,70 @@ public class ExpressionTree {
         if(!s.isEmpty()){
             System.out.println("Error, empty stack");
         }
+        compile();
     }   
     
+    /**
+     * Makes root the root of this tree and compiles it.
+     * Used by the single pass parser, which builds the nodes directly.
+     * @param root the root node
+     */
+    void setRoot(ExpressionTreeNode root) {
+        this.root = root;
+        compile();
+    }
+    
+    /**
+     * Returns the compiled postfix instructions of this tree.
+     * @return int[] the instructions, not to be modified
+     */
+    int[] getCode() {
+        return myCode;
+    }
+    
+    /**
+     * Rebuilds a tree from the instructions compile wrote for it, 
+     * used to decode formulas kept in their compiled form.
+     * @param theCode the instructions
+     * @return ExpressionTree the compiled tree
+     */
+    static ExpressionTree fromCode(final int[] theCode) {
+        
+        final ExpressionTreeNode[] nodes = new ExpressionTreeNode[theCode.length];
+        int top = -1;
+        int pc = 0;
+        
+        while (pc < theCode.length) {
+            final int op = theCode[pc];
+            
+            if (op == OP_LITERAL) {
+                nodes[++top] = new ExpressionTreeNode(new LiteralToken(theCode[pc + 1]));
+                pc += 2;
+            } else if (op == OP_CELL) {
+                nodes[++top] = new ExpressionTreeNode(new CellToken(theCode[pc + 1], theCode[pc + 2]));
+                pc += 3;
+            } else if (op == OP_RANGE) {
+                nodes[++top] = new ExpressionTreeNode(new FunctionToken(theCode[pc + 1], 
+                        new CellToken(theCode[pc + 2], theCode[pc + 3]),
+                        new CellToken(theCode[pc + 4], theCode[pc + 5])));
+                pc += 6;
+            } else {
+                final ExpressionTreeNode right = nodes[top--];
+                final ExpressionTreeNode left = nodes[top];
+                
+                nodes[top] = op == OP_DISCARD 
+                        ? new ExpressionTreeNode(new LiteralToken(0))
+                        : new ExpressionTreeNode(new OperatorToken(OPERATOR_CHARS[op - OP_ADD]), 
+                                                 left, right);
+                pc++;
+            }
+        }
+        
+        final ExpressionTree expressionTree = new ExpressionTree();
+        expressionTree.setRoot(top < 0 ? null : nodes[top]);
+        return expressionTree;
+    }
+    
     /**
      * Method that returns a string representation of the expression tree.
      * (in our case the formula)
@@ -78,13 +270,182 @@ public class ExpressionTree {
     
     /**
      * Evaluates the expression tree and returns the integer value calculated.
+     * Runs the compiled instructions over a reused operand stack, so an
+     * evaluation allocates nothing.
      * @param spreadsheet The spreadsheet
      * @return int the value 
      */
     public int evaluate (Spreadsheet spreadsheet) {       
-        return evaluate(root, spreadsheet);
+        
+        if (myPromoted != null) {
+            return evaluatePromoted(spreadsheet);
+        }
+        
+        final int[] code = myCode;
+        final int[] stack = myOperands;
+        int top = -1;
+        int pc = 0;
+        
+        if (code.length == 0) {
+            return 0;
+        }
+        
+        while (pc < code.length) {
+            switch (code[pc]) {
+            case OP_LITERAL:
+                stack[++top] = code[pc + 1];
+                pc += 2;
+                break;
+            case OP_CELL:
+                stack[++top] = spreadsheet.getCellValue(code[pc + 1], code[pc + 2]);
+                pc += 3;
+                break;
+            case OP_RANGE:
+                stack[++top] = spreadsheet.aggregate(code[pc + 1], code[pc + 2], code[pc + 3],
+                                                     code[pc + 4], code[pc + 5]);
+                pc += 6;
+                break;
+            case OP_ADD:
+                top--;
+                stack[top] = stack[top] + stack[top + 1];
+                pc++;
+                break;
+            case OP_SUB:
+                top--;
+                stack[top] = stack[top] - stack[top + 1];
+                pc++;
+                break;
+            case OP_MULT:
+                top--;
+                stack[top] = stack[top] * stack[top + 1];
+                pc++;
+                break;
+            case OP_DIV:
+                top--;
+                stack[top] = stack[top] / stack[top + 1];
+                pc++;
+                break;
+            default:
+                top--;
+                stack[top] = 0;
+                pc++;
+                break;
+            }
+        }
+        return stack[0];
+    }
+    
+    
+    /**
+     * Returns the locations of the cells the expression refers to,
+     * in the order they appear in the formula.
+     * @return List the referenced cells
+     */
+    public List<CellToken> getCellReferences() {
+        
+        final List<CellToken> references = new ArrayList<CellToken>();
+        int pc = 0;
+        
+        while (pc < myCode.length) {
+            switch (myCode[pc]) {
+            case OP_LITERAL:
+                pc += 2;
+                break;
+            case OP_CELL:
+                references.add(new CellToken(myCode[pc + 1], myCode[pc + 2]));
+                pc += 3;
+                break;
+            case OP_RANGE:
+                pc += 6;
+                break;
+            default:
+                pc++;
+                break;
+            }
+        }
+        return references;
+    }
+    
+    /**
+     * Returns the addresses of the cells the expression refers to,
+     * in the order they appear in the formula, see CellAddress.
+     * @return long[] the referenced cells
+     */
+    public long[] getCellAddresses() {
+        
+        int count = 0;
+        for (int pc = 0; pc < myCode.length; pc += length(myCode[pc])) {
+            if (myCode[pc] == OP_CELL) {
+                count++;
+            }
+        }
+        
+        final long[] addresses = new long[count];
+        count = 0;
+        for (int pc = 0; pc < myCode.length; pc += length(myCode[pc])) {
+            if (myCode[pc] == OP_CELL) {
+                addresses[count++] = CellAddress.encode(myCode[pc + 1], myCode[pc + 2]);
+            }
+        }
+        return addresses;
+    }
+    
+    /**
+     * Returns the aggregates over ranges the expression refers to,
+     * in the order they appear in the formula.
+     * @return List the aggregates
+     */
+    public List<FunctionToken> getRangeReferences() {
+        
+        final List<FunctionToken> references = new ArrayList<FunctionToken>();
+        int pc = 0;
+        
+        while (pc < myCode.length) {
+            switch (myCode[pc]) {
+            case OP_LITERAL:
+                pc += 2;
+                break;
+            case OP_CELL:
+                pc += 3;
+                break;
+            case OP_RANGE:
+                references.add(new FunctionToken(myCode[pc + 1], 
+                        new CellToken(myCode[pc + 2], myCode[pc + 3]),
+                        new CellToken(myCode[pc + 4], myCode[pc + 5])));
+                pc += 6;
+                break;
+            default:
+                pc++;
+                break;
+            }
+        }
+        return references;
+    }
+    
+    /**
+     * Counts one evaluation and promotes the expression to a MethodHandle
+     * chain once theThreshold evaluations have been counted. The chain
+     * reads precedent values directly, so the JIT can inline the arithmetic
+     * of a hot cell instead of running the instruction loop.
+     * @param theThreshold evaluations needed for promotion
+     * @return true if this call promoted the expression
+     */
+    public boolean countEvaluation(final int theThreshold) {
+        
+        if (myPromoted != null || ++myEvaluations < theThreshold) {
+            return false;
+        }
+        myPromoted = promote();
+        return true;
     }
     
+    /**
+     * Returns whether the expression has been promoted to a MethodHandle chain.
+     * @return true if promoted
+     */
+    public boolean isPromoted() {
+        return myPromoted != null;
+    }
     
     /**
      * Return a string associated with a token
@@ -97,7 +458,9 @@ public class ExpressionTree {
         if (expTreeToken instanceof OperatorToken) {
             returnString = ((OperatorToken) expTreeToken).getOperatorToken() + " ";
         } else if (expTreeToken instanceof CellToken) {
-            returnString = printCellToken((CellToken) expTreeToken) + " ";
+            returnString = CellToken.printCellToken((CellToken) expTreeToken) + " ";
+        } else if (expTreeToken instanceof FunctionToken) {
+            returnString = expTreeToken + " ";
         } else if (expTreeToken instanceof LiteralToken) {
             returnString = ((LiteralToken) expTreeToken).getValue() + " ";
         } else {
@@ -162,7 +525,8 @@ public class ExpressionTree {
 		
 		token =  (Token) stack.topAndPop(); // need to handle stack underflow ( will implement later)
 		
-		if((token instanceof LiteralToken) || (token instanceof CellToken)){	
+		if((token instanceof LiteralToken) || (token instanceof CellToken) 
+		        || (token instanceof FunctionToken)){	
 			
 			// Literal and Cells are leaves in the expresion tree
 			tree = new ExpressionTreeNode(token, null, null);
@@ -180,105 +544,245 @@ public class ExpressionTree {
 		}		
         return null;		
 	}
-	
-	/**
-	 *  Given a CellToken, print it out as it appears on the
-	 *  spreadsheet (e.g., "A3")
-	 *  @param cellToken  a CellToken
-	 *  @return  the cellToken's coordinates
-	 */
-	private String printCellToken (CellToken cellToken) {
-	    char ch;
-	    String returnString = "";
-	    int col;
-	    int largest = 26;  // minimum col number with number_of_digits digits
-	    int number_of_digits = 2;
-
-	    col = cellToken.getColumn();
-
-	    // compute the biggest power of 26 that is less than or equal to col
-	    // We don't check for overflow of largest here.
-	    while (largest <= col) {
-	        largest = largest * 26;
-	        number_of_digits++;
-	    }
-	    largest = largest / 26;
-	    number_of_digits--;
-
-	    // append the column label, one character at a time
-	    while (number_of_digits > 1) {
-	        ch = (char) ((char) ((col / largest) - 1) + 'A');
-	        returnString += ch;
-	        col = col % largest;
-	        largest = largest  / 26;
-	        number_of_digits--;
-	    }
-
-	    // handle last digit
-	    ch = (char) (col + 'A');
-	    returnString += ch;
-
-	    // append the row as an integer
-	    returnString += cellToken.getRow();
-
-	    return returnString;
-	}
-
-
-	/**
-	 * Recursive helper method that traverses the tree (post order traversal)
-	 * and computes the value.
-	 * @param root the root of the tree
-	 * @param spreadsheet the spreadsheet
-	 * @return int the calculated value of tree
-	 */
-	private int evaluate(ExpressionTreeNode root, Spreadsheet spreadsheet) {
-
-	    if (root == null) {
-	        return 0;
-	    }
-	    
-	    if (root.left == null && root.right == null) {
-
-	        if (root.getToken() instanceof LiteralToken) {
-	            return ((LiteralToken) root.getToken()).getValue();
-	        } else if (root.getToken() instanceof OperatorToken){
-	            return 0;
-	        } else{    
-	            // reference to another cell
-	            CellToken token = ((CellToken) root.getToken()); 
-	            
-	            return spreadsheet.getCellValue(token);             
-	        }
-
-	    } else {
-
-	        int total = 0;
-	        int left = evaluate(root.left, spreadsheet);
-	        int right = evaluate(root.right, spreadsheet);
-
-	        char operator = ((OperatorToken) root.getToken()).getOperatorToken();
-
-	        switch (operator) {
-
-	        case '+':
-	            total = left + right;
-	            break;
-	        case '-':
-	            total = left - right;
-	            break;
-	        case '*':
-	            total = left * right;
-	            break;
-	        case '/':
-	            total = left / right;
-	            break;  
-	        default:
-	            //System.out.println("Did you add an operator");
-	            break; 
-	        }
-	        return total;
-	    }       
-	}
+    
+    /**
+     * Evaluates the promoted MethodHandle chain.
+     * @param spreadsheet the spreadsheet
+     * @return int the value
+     */
+    private int evaluatePromoted(Spreadsheet spreadsheet) {
+        try {
+            return (int) myPromoted.invokeExact(spreadsheet);
+        } catch (RuntimeException | Error e) {
+            // same exceptions as interpreting, e.g. division by zero
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * Builds a MethodHandle chain of type (Spreadsheet)int from the 
+     * postfix code, one handle per instruction.
+     * @return MethodHandle the expression
+     */
+    private MethodHandle promote() {
+        
+        final int[] code = myCode;
+        final MethodHandle[] stack = new MethodHandle[Math.max(1, myOperands.length)];
+        int top = -1;
+        int pc = 0;
+        
+        if (code.length == 0) {
+            return literal(0);
+        }
+        
+        while (pc < code.length) {
+            switch (code[pc]) {
+            case OP_LITERAL:
+                stack[++top] = literal(code[pc + 1]);
+                pc += 2;
+                break;
+            case OP_CELL:
+                stack[++top] = MethodHandles.insertArguments(CELL_VALUE, 1, 
+                        CellAddress.encode(code[pc + 1], code[pc + 2]));
+                pc += 3;
+                break;
+            case OP_RANGE:
+                stack[++top] = MethodHandles.insertArguments(AGGREGATE, 1, code[pc + 1], 
+                        code[pc + 2], code[pc + 3], code[pc + 4], code[pc + 5]);
+                pc += 6;
+                break;
+            default:
+                // op(left(sheet), right(sheet)) with the sheet passed to both
+                final MethodHandle operands = MethodHandles.filterArguments(
+                        OPERATORS[code[pc] - OP_ADD], 0, stack[top - 1], stack[top]);
+                top--;
+                stack[top] = MethodHandles.permuteArguments(operands, EXPRESSION_TYPE, 0, 0);
+                pc++;
+                break;
+            }
+        }
+        return stack[0];
+    }
+    
+    /**
+     * Returns the number of code words of an instruction and its operands.
+     * @param theInstruction the instruction
+     * @return int the length
+     */
+    private static int length(final int theInstruction) {
+        switch (theInstruction) {
+        case OP_LITERAL:
+            return 2;
+        case OP_CELL:
+            return 3;
+        case OP_RANGE:
+            return 6;
+        default:
+            return 1;
+        }
+    }
+    
+    /**
+     * Returns a handle of type (Spreadsheet)int that always returns theValue.
+     * @param theValue the literal
+     * @return MethodHandle the constant expression
+     */
+    private static MethodHandle literal(final int theValue) {
+        return MethodHandles.dropArguments(MethodHandles.constant(int.class, theValue), 
+                                           0, Spreadsheet.class);
+    }
+    
+    /**
+     * Operator + for promoted expressions.
+     */
+    private static int add(final int left, final int right) {
+        return left + right;
+    }
+    
+    /**
+     * Operator - for promoted expressions.
+     */
+    private static int sub(final int left, final int right) {
+        return left - right;
+    }
+    
+    /**
+     * Operator * for promoted expressions.
+     */
+    private static int mult(final int left, final int right) {
+        return left * right;
+    }
+    
+    /**
+     * Operator / for promoted expressions.
+     */
+    private static int div(final int left, final int right) {
+        return left / right;
+    }
+    
+    /**
+     * Unknown operator for promoted expressions, always 0.
+     */
+    private static int discard(final int left, final int right) {
+        return 0;
+    }
+    
+    /**
+     * Compiles the tree into postfix instructions and sizes
+     * the operand stack.
+     */
+    private void compile() {
+        
+        if (root == null) {
+            myCode = EMPTY_CODE;
+            myOperands = EMPTY_CODE;
+            return;
+        }
+        
+        final int[] code = new int[codeLength(root)];
+        compile(root, code, 0);
+        myCode = code;
+        myOperands = new int[stackDepth(root)];
+    }
+    
+    /**
+     * Returns the number of code words needed for a subtree.
+     * A missing subtree compiles to the literal 0.
+     * @param root the root of the subtree
+     * @return int the number of code words
+     */
+    private int codeLength(ExpressionTreeNode root) {
+        
+        if (root == null) {
+            return 2;
+        }
+        if (root.left == null && root.right == null) {
+            if (root.getToken() instanceof FunctionToken) {
+                return 6;
+            }
+            return root.getToken() instanceof CellToken ? 3 : 2;
+        }
+        return codeLength(root.left) + codeLength(root.right) + 1;
+    }
+    
+    /**
+     * Returns the number of operand stack slots needed to evaluate a subtree.
+     * @param root the root of the subtree
+     * @return int the stack depth
+     */
+    private int stackDepth(ExpressionTreeNode root) {
+        
+        if (root == null || (root.left == null && root.right == null)) {
+            return 1;
+        }
+        return Math.max(stackDepth(root.left), 1 + stackDepth(root.right));
+    }
+    
+    /**
+     * Recursive helper method that traverses the tree (post order traversal)
+     * and writes its instructions into code.
+     * A leaf that is an operator, like a missing subtree, evaluates to 0.
+     * @param root the root of the subtree
+     * @param code the code being written
+     * @param pc the index to write the next instruction at
+     * @return int the index after the subtree's instructions
+     */
+    private int compile(ExpressionTreeNode root, int[] code, int pc) {
+        
+        if (root == null) {
+            code[pc] = OP_LITERAL;
+            code[pc + 1] = 0;
+            return pc + 2;
+        }
+        
+        final Token token = root.getToken();
+        
+        if (root.left == null && root.right == null) {
+            
+            if (token instanceof CellToken) {
+                code[pc] = OP_CELL;
+                code[pc + 1] = ((CellToken) token).getRow();
+                code[pc + 2] = ((CellToken) token).getColumn();
+                return pc + 3;
+            }
+            if (token instanceof FunctionToken) {
+                final FunctionToken range = (FunctionToken) token;
+                code[pc] = OP_RANGE;
+                code[pc + 1] = range.getFunction();
+                code[pc + 2] = range.getStart().getRow();
+                code[pc + 3] = range.getStart().getColumn();
+                code[pc + 4] = range.getEnd().getRow();
+                code[pc + 5] = range.getEnd().getColumn();
+                return pc + 6;
+            }
+            code[pc] = OP_LITERAL;
+            code[pc + 1] = token instanceof LiteralToken ? ((LiteralToken) token).getValue() : 0;
+            return pc + 2;
+        }
+        
+        pc = compile(root.left, code, pc);
+        pc = compile(root.right, code, pc);
+        
+        switch (((OperatorToken) token).getOperatorToken()) {
+        case OperatorToken.Plus:
+            code[pc] = OP_ADD;
+            break;
+        case OperatorToken.Minus:
+            code[pc] = OP_SUB;
+            break;
+        case OperatorToken.Mult:
+            code[pc] = OP_MULT;
+            break;
+        case OperatorToken.Div:
+            code[pc] = OP_DIV;
+            break;
+        default:
+            code[pc] = OP_DISCARD;
+            break;
+        }
+        return pc + 1;
+    }
 
 }
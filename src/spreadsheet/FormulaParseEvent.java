@@ -0,0 +1,29 @@
+package spreadsheet;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+/**
+ * Flight Recorder event of a formula parsed by Spreadsheet.getFormula
+ * or Spreadsheet.parseFormula.
+ *
+ * @author Dmitriy Onishchenko
+ * @version 26 February 2016
+ */
+@Name("spreadsheet.FormulaParse")
+@Label("Formula Parse")
+@Category("Spreadsheet")
+@Description("A formula parsed into postfix tokens or an expression tree")
+@StackTrace(false)
+final class FormulaParseEvent extends jdk.jfr.Event {
+
+    /**
+     * Number of characters of the formula.
+     */
+    @Label("Formula Length")
+    int formulaLength;
+}
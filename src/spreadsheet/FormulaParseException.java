@@ -0,0 +1,41 @@
+package spreadsheet;
+
+
+/**
+ * Exception thrown when a formula is not a legal expression.
+ * Carries the position in the formula where parsing failed.
+ *
+ * @author Dmitriy Onishchenko
+ * @version 26 February 2016
+ */
+public class FormulaParseException extends Exception {
+
+    /**
+     * Generated ID.
+     */
+    private static final long serialVersionUID = 6204436123094176823L;
+
+    /**
+     * Index of the char in the formula where parsing failed.
+     */
+    private final int myPosition;
+
+    /**
+     * Constructor.
+     * @param theMessage what is wrong with the formula
+     * @param thePosition index of the offending char in the formula
+     */
+    public FormulaParseException(final String theMessage, final int thePosition) {
+        super(theMessage + " at position " + thePosition);
+        myPosition = thePosition;
+    }
+
+    /**
+     * Returns the index of the char in the formula where parsing failed,
+     * the length of the formula if it ended too early.
+     * @return int the position
+     */
+    public int getPosition() {
+        return myPosition;
+    }
+}
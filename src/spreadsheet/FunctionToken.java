@@ -0,0 +1,167 @@
+package spreadsheet;
+
+
+/**
+ * Token class which represents an aggregate function over a range
+ * of cells, e.g. SUM(A1:A100).
+ *  functions: SUM, AVG, MIN, MAX
+ *
+ * Only cells holding a formula count towards an aggregate, empty cells
+ * and text are skipped. An aggregate over no such cell is 0.
+ *
+ * @author Dmitriy Onishchenko
+ * @version 26 February 2016
+ *
+ */
+public class FunctionToken extends Token {
+
+    /**
+     * Sum of the range.
+     */
+    public static final int SUM = 0;
+
+    /**
+     * Average of the range, rounded towards zero.
+     */
+    public static final int AVG = 1;
+
+    /**
+     * Minimum of the range.
+     */
+    public static final int MIN = 2;
+
+    /**
+     * Maximum of the range.
+     */
+    public static final int MAX = 3;
+
+    /**
+     * Function names, indexed by function.
+     */
+    private static final String[] NAMES = {"SUM", "AVG", "MIN", "MAX"};
+
+    /**
+     * One of the four functions.
+     */
+    private int function;
+
+    /**
+     * Top left cell of the range.
+     */
+    private CellToken start;
+
+    /**
+     * Bottom right cell of the range.
+     */
+    private CellToken end;
+
+
+    /**
+     * Default Constructor.
+     */
+    public FunctionToken() {
+        this(SUM, new CellToken(), new CellToken());
+    }
+
+    /**
+     * Constructor that sets the function and the range. The corners
+     * may be given in any order.
+     * @param function the function
+     * @param corner one corner of the range
+     * @param otherCorner the opposite corner of the range
+     */
+    public FunctionToken(final int function, final CellToken corner, final CellToken otherCorner) {
+        this.function = function;
+        setRange(corner, otherCorner);
+    }
+
+
+    /**
+     * Returns the function.
+     * @return int the function
+     */
+    public int getFunction() {
+        return function;
+    }
+
+    /**
+     * Returns the top left cell of the range.
+     * @return CellToken the top left cell
+     */
+    public CellToken getStart() {
+        return start;
+    }
+
+    /**
+     * Returns the bottom right cell of the range.
+     * @return CellToken the bottom right cell
+     */
+    public CellToken getEnd() {
+        return end;
+    }
+
+    /**
+     * Sets the function.
+     * @param function the function
+     */
+    public void setFunction(final int function) {
+        this.function = function;
+    }
+
+    /**
+     * Sets the range from two opposite corners, given in any order.
+     * @param corner one corner of the range
+     * @param otherCorner the opposite corner of the range
+     */
+    public void setRange(final CellToken corner, final CellToken otherCorner) {
+        start = new CellToken(Math.min(corner.getRow(), otherCorner.getRow()),
+                              Math.min(corner.getColumn(), otherCorner.getColumn()));
+        end = new CellToken(Math.max(corner.getRow(), otherCorner.getRow()),
+                            Math.max(corner.getColumn(), otherCorner.getColumn()));
+    }
+
+
+    @Override
+    /**
+     * {@inheritDoc}.
+     */
+    public String toString () {
+        final StringBuilder string = new StringBuilder(NAMES[function]).append('(');
+        
+        CellAddress.appendLabel(string, start.getAddress()).append(':');
+        return CellAddress.appendLabel(string, end.getAddress()).append(')').toString();
+    }
+
+
+    /**
+     * Given a function name in a region of a string, of either case, 
+     * return its function.
+     * @param string the string
+     * @param start index of the first char of the name
+     * @param end index just after the name
+     * @return int the function or -1 if there is no such function
+     */
+    public static int functionOf (final String string, final int start, final int end) {
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].length() == end - start
+                    && string.regionMatches(true, start, NAMES[i], 0, end - start)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Given a function name, return its function.
+     * @param name the name in capital letters
+     * @return int the function or -1 if there is no such function
+     */
+    public static int functionOf (final String name) {
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
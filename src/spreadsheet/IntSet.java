@@ -0,0 +1,184 @@
+package spreadsheet;
+
+import java.util.Arrays;
+
+
+/**
+ * Open addressing hash set of non-negative ints, used for the cell ids
+ * on either side of the dependency edges of a Cell. Adding and removing
+ * are O(1) amortized and an edge costs a few bytes instead of a list node.
+ *
+ * The slots are exposed for allocation free iteration, every slot that
+ * is not FREE holds an element:
+ * <pre>
+ * for (int id: set.slots()) {
+ *     if (id != IntSet.FREE) { ... }
+ * }
+ * </pre>
+ *
+ * @author Dmitriy Onishchenko
+ * @version 26 February 2016
+ */
+class IntSet {
+
+    /**
+     * Value of an unused slot.
+     */
+    static final int FREE = -1;
+
+    /**
+     * Initial number of slots, a power of two.
+     */
+    private static final int INITIAL_CAPACITY = 4;
+
+    /**
+     * The slots, FREE if unused.
+     */
+    private int[] mySlots;
+
+    /**
+     * Number of elements.
+     */
+    private int mySize;
+
+
+    /**
+     * Constructor.
+     */
+    IntSet() {
+        mySlots = new int[INITIAL_CAPACITY];
+        Arrays.fill(mySlots, FREE);
+    }
+
+
+    /**
+     * Returns the number of elements.
+     * @return int the size
+     */
+    int size() {
+        return mySize;
+    }
+
+    /**
+     * Returns the slots of the set, elements are the slots that are not FREE.
+     * @return int[] the slots
+     */
+    int[] slots() {
+        return mySlots;
+    }
+
+    /**
+     * Returns whether the set contains theValue.
+     * @param theValue the value
+     * @return true if contained
+     */
+    boolean contains(final int theValue) {
+        final int mask = mySlots.length - 1;
+
+        for (int i = hash(theValue) & mask; mySlots[i] != FREE; i = (i + 1) & mask) {
+            if (mySlots[i] == theValue) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds theValue to the set.
+     * @param theValue the value, not negative
+     * @return true if it was not in the set before
+     */
+    boolean add(final int theValue) {
+
+        // keep the table at most three quarters full
+        if (4 * (mySize + 1) > 3 * mySlots.length) {
+            final int[] old = mySlots;
+            mySlots = new int[2 * old.length];
+            Arrays.fill(mySlots, FREE);
+            for (int value: old) {
+                if (value != FREE) {
+                    insert(value);
+                }
+            }
+        }
+
+        if (insert(theValue)) {
+            mySize++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes theValue from the set.
+     * @param theValue the value
+     * @return true if it was in the set
+     */
+    boolean remove(final int theValue) {
+        final int mask = mySlots.length - 1;
+        int i = hash(theValue) & mask;
+
+        while (mySlots[i] != theValue) {
+            if (mySlots[i] == FREE) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+
+        // shift later elements of the probe run back into the hole
+        for (int j = (i + 1) & mask; mySlots[j] != FREE; j = (j + 1) & mask) {
+            final int home = hash(mySlots[j]) & mask;
+
+            // move unless home lies cyclically in (i, j]
+            if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                mySlots[i] = mySlots[j];
+                i = j;
+            }
+        }
+        mySlots[i] = FREE;
+        mySize--;
+        return true;
+    }
+
+    /**
+     * Removes every element.
+     */
+    void clear() {
+        mySlots = new int[INITIAL_CAPACITY];
+        Arrays.fill(mySlots, FREE);
+        mySize = 0;
+    }
+
+
+    /////////////////////////// PRIVATE HELPER METHODS //////////////////////////////////////
+
+
+    /**
+     * Places theValue in its probe run.
+     * @param theValue the value
+     * @return true if it was not in the table before
+     */
+    private boolean insert(final int theValue) {
+        final int mask = mySlots.length - 1;
+        int i = hash(theValue) & mask;
+
+        while (mySlots[i] != FREE) {
+            if (mySlots[i] == theValue) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        mySlots[i] = theValue;
+        return true;
+    }
+
+    /**
+     * Spreads the bits of a value, ids of neighbouring cells are consecutive.
+     * @param theValue the value
+     * @return int the hash
+     */
+    private static int hash(final int theValue) {
+        final int h = theValue * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,242 @@
+package spreadsheet;
+
+import java.util.Arrays;
+
+
+/**
+ * Index of the ranges that formulas refer to, e.g. the A1:A100 of
+ * SUM(A1:A100). A range is a single dependency record instead of one
+ * edge per cell, and is listed under every column it covers so the
+ * formulas depending on a changed cell are found by looking at the
+ * ranges of its column only.
+ *
+ * Columns and formula cells are array indexes, like the cell ids of the
+ * dependency graph. A range remembers its slot in each column it covers,
+ * so removing it takes O(1) per column instead of a scan of the column.
+ *
+ * @author Dmitriy Onishchenko
+ * @version 26 February 2016
+ */
+class RangeIndex {
+
+    /**
+     * Ranges of a cell or column without any.
+     */
+    private static final Range[] NO_RANGES = {};
+
+    /**
+     * Initial length of an array of ranges or of a directory.
+     */
+    private static final int INITIAL_CAPACITY = 4;
+
+    /**
+     * The ranges covering each column by column, null for columns without
+     * any. Slots after the last range of a column are null.
+     */
+    private Range[][] myColumns;
+
+    /**
+     * Number of ranges covering each column.
+     */
+    private int[] myColumnSizes;
+
+    /**
+     * The ranges of each formula cell by cell id, null for cells without any.
+     */
+    private Range[][] myByCell;
+
+    /**
+     * Number of formula cells with ranges.
+     */
+    private int myCells;
+
+
+    /**
+     * Constructor.
+     */
+    RangeIndex() {
+        clear();
+    }
+
+
+    /**
+     * Returns whether the index holds no range.
+     * @return true if empty
+     */
+    boolean isEmpty() {
+        return myCells == 0;
+    }
+
+    /**
+     * Returns the slots of the ranges covering theColumn, the slots after
+     * the last range are null.
+     * @param theColumn the column
+     * @return Range[] the slots, the ranges possibly covering other rows
+     */
+    Range[] column(final int theColumn) {
+        if (theColumn < myColumns.length && myColumns[theColumn] != null) {
+            return myColumns[theColumn];
+        }
+        return NO_RANGES;
+    }
+
+    /**
+     * Returns the ranges the formula of a cell refers to.
+     * @param theCellId the id of the formula cell
+     * @return Range[] the ranges, not to be changed
+     */
+    Range[] ranges(final int theCellId) {
+        if (theCellId < myByCell.length && myByCell[theCellId] != null) {
+            return myByCell[theCellId];
+        }
+        return NO_RANGES;
+    }
+
+    /**
+     * Records that the formula of a cell refers to a range.
+     * @param theCellId the id of the formula cell
+     * @param theRange the range
+     */
+    void add(final int theCellId, final FunctionToken theRange) {
+        final Range range = new Range(theCellId, theRange);
+
+        if (theCellId >= myByCell.length) {
+            myByCell = Arrays.copyOf(myByCell, Math.max(theCellId + 1, 2 * myByCell.length));
+        }
+        final Range[] ranges = myByCell[theCellId];
+        if (ranges == null) {
+            myByCell[theCellId] = new Range[] {range};
+            myCells++;
+        } else {
+            myByCell[theCellId] = Arrays.copyOf(ranges, ranges.length + 1);
+            myByCell[theCellId][ranges.length] = range;
+        }
+
+        if (range.myLastColumn >= myColumns.length) {
+            final int length = Math.max(range.myLastColumn + 1, 2 * myColumns.length);
+            myColumns = Arrays.copyOf(myColumns, length);
+            myColumnSizes = Arrays.copyOf(myColumnSizes, length);
+        }
+        for (int col = range.myFirstColumn; col <= range.myLastColumn; col++) {
+            Range[] column = myColumns[col];
+            final int size = myColumnSizes[col];
+
+            if (column == null) {
+                column = new Range[INITIAL_CAPACITY];
+                myColumns[col] = column;
+            } else if (size == column.length) {
+                column = Arrays.copyOf(column, 2 * size);
+                myColumns[col] = column;
+            }
+            column[size] = range;
+            range.mySlots[col - range.myFirstColumn] = size;
+            myColumnSizes[col] = size + 1;
+        }
+    }
+
+    /**
+     * Removes every range the formula of a cell refers to.
+     * @param theCellId the id of the formula cell
+     */
+    void remove(final int theCellId) {
+        final Range[] ranges = ranges(theCellId);
+
+        if (ranges.length == 0) {
+            return;
+        }
+        myByCell[theCellId] = null;
+        myCells--;
+
+        for (Range range: ranges) {
+            for (int col = range.myFirstColumn; col <= range.myLastColumn; col++) {
+                final Range[] column = myColumns[col];
+                final int last = --myColumnSizes[col];
+                final int slot = range.mySlots[col - range.myFirstColumn];
+
+                // the last range of the column takes the slot of the removed one
+                final Range moved = column[last];
+                column[slot] = moved;
+                moved.mySlots[col - moved.myFirstColumn] = slot;
+                column[last] = null;
+                if (last == 0) {
+                    myColumns[col] = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes every range.
+     */
+    void clear() {
+        myColumns = new Range[INITIAL_CAPACITY][];
+        myColumnSizes = new int[INITIAL_CAPACITY];
+        myByCell = new Range[INITIAL_CAPACITY][];
+        myCells = 0;
+    }
+
+
+    //////////////////////////////////// INNER CLASSES /////////////////////////////////
+
+    /**
+     * A rectangular range one formula cell refers to.
+     * Compared by identity, a formula may refer to the same range twice.
+     */
+    static final class Range {
+
+        /**
+         * Id of the formula cell.
+         */
+        final int myCellId;
+
+        /**
+         * First row, inclusive.
+         */
+        final int myFirstRow;
+
+        /**
+         * Last row, inclusive.
+         */
+        final int myLastRow;
+
+        /**
+         * First column, inclusive.
+         */
+        final int myFirstColumn;
+
+        /**
+         * Last column, inclusive.
+         */
+        final int myLastColumn;
+
+        /**
+         * Slot of the range in each column it covers, from the first column.
+         */
+        final int[] mySlots;
+
+        /**
+         * Constructor.
+         * @param theCellId id of the formula cell
+         * @param theRange the range
+         */
+        Range(final int theCellId, final FunctionToken theRange) {
+            myCellId = theCellId;
+            myFirstRow = theRange.getStart().getRow();
+            myLastRow = theRange.getEnd().getRow();
+            myFirstColumn = theRange.getStart().getColumn();
+            myLastColumn = theRange.getEnd().getColumn();
+            mySlots = new int[myLastColumn - myFirstColumn + 1];
+        }
+
+        /**
+         * Returns whether the range contains a location.
+         * @param theRow the row
+         * @param theColumn the column
+         * @return true if contained
+         */
+        boolean contains(final int theRow, final int theColumn) {
+            return theRow >= myFirstRow && theRow <= myLastRow
+                    && theColumn >= myFirstColumn && theColumn <= myLastColumn;
+        }
+    }
+}
@@ -0,0 +1,484 @@
+package spreadsheet;
+
+import java.beans.PropertyChangeListener;
+import java.beans.PropertyChangeSupport;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * Recalculates a Spreadsheet on a dedicated engine thread, so that the
+ * thread editing it, e.g. the Swing Event Dispatch Thread, never waits
+ * for a long recalculation.
+ *
+ * An edit is applied right away on the editing thread, which only
+ * parses the input, updates the dependencies and checks for cycles.
+ * The edited cell and its dependents are queued and evaluated by the
+ * engine thread, which publishes PROGRESS property changes while it
+ * works and a DONE property change once every queued cell has its value.
+ * CHANGED property changes list the cells whose value the engine 
+ * changed, so a view only needs to refresh those. The edited cell
+ * itself changes when it is edited, and is only listed if the engine
+ * changes its value again. A formula that cannot be evaluated, e.g.
+ * a division by zero, is reported by a FAILED property change and the
+ * engine goes on with the next edit.
+ *
+ * A newer edit supersedes the recalculation in flight: it is stopped
+ * after its current dependency level, and the cells it has not
+ * evaluated yet are recalculated together with the new edit. Values
+ * read while the engine works are the values computed so far.
+ *
+ * The spreadsheet must only be changed through edit, readCsv and discard while
+ * an engine is attached, and its values are computed by the engine
+ * regardless of its recalculation mode.
+ *
+ * @author Dmitriy Onishchenko
+ * @version 26 February 2016
+ */
+public final class RecalculationEngine {
+
+    /**
+     * Flag for property change listener, fired on the engine thread with
+     * the number of cells evaluated as old value and the number of cells
+     * to evaluate as new value.
+     */
+    public static final String PROGRESS = "Recalculation progress";
+
+    /**
+     * Flag for property change listener, fired on the engine thread once
+     * every queued cell has been evaluated.
+     */
+    public static final String DONE = "Recalculation done";
+
+    /**
+     * Flag for property change listener, fired on the engine thread with
+     * a long[] of the addresses of the cells whose value changed since the
+     * last CHANGED property change as new value, see CellAddress. Fired 
+     * with the PROGRESS property changes, and before DONE or when stopped.
+     */
+    public static final String CHANGED = "Values changed";
+
+    /**
+     * Flag for property change listener, fired on the engine thread with
+     * the RuntimeException a formula threw as new value. The cells the
+     * recalculation had not evaluated yet keep their values, DONE follows.
+     */
+    public static final String FAILED = "Recalculation failed";
+
+    /**
+     * Minimum nanoseconds between two PROGRESS property changes, about
+     * one frame at 60 frames per second.
+     */
+    private static final long PROGRESS_INTERVAL = 16000000L;
+
+    /**
+     * Initial capacity of the addresses of changed cells.
+     */
+    private static final int INITIAL_CHANGES = 64;
+
+    /**
+     * The spreadsheet.
+     */
+    private final Spreadsheet mySheet;
+
+    /**
+     * The engine thread.
+     */
+    private final ExecutorService myExecutor;
+
+    /**
+     * Property change support, listeners are called on the engine thread.
+     */
+    private final PropertyChangeSupport myPcs;
+
+    /**
+     * The cells waiting to be evaluated, closed under dependents and
+     * each listed once. Guarded by this.
+     */
+    private List<Cell> myPending;
+
+    /**
+     * The recalculation in flight or queued, null if there is none.
+     * Only used by the editing thread.
+     */
+    private Future<?> myRecalculation;
+
+    /**
+     * True to stop the recalculation in flight after its current level.
+     */
+    private volatile boolean myCancelled;
+
+    /**
+     * The value of each cell being evaluated before its evaluation, by
+     * cell id. Only used by the engine thread.
+     */
+    private int[] myOldValues;
+
+
+    /**
+     * Creates an engine for theSheet with its own engine thread.
+     * @param theSheet the spreadsheet
+     */
+    public RecalculationEngine(final Spreadsheet theSheet) {
+
+        mySheet = theSheet;
+        myPcs = new PropertyChangeSupport(this);
+        myPending = new ArrayList<Cell>();
+        myOldValues = new int[0];
+        myExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable theTask) {
+                final Thread thread = new Thread(theTask, "Recalculation engine");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+
+    /**
+     * Changes the cell at a location to an input, as typed into a cell,
+     * and queues the recalculation of the cell and its dependents. Waits
+     * for the recalculation in flight to stop at its current level first.
+     * @param theLocation the location
+     * @param theInput "=" and a formula, an integer or plain text, empty to clear
+     * @return true if the edit was applied, false if it was rejected
+     *         because it would create a cycle
+     * @throws FormulaParseException if the input does not parse, the
+     *         spreadsheet is left as it was
+     */
+    public boolean edit(final CellToken theLocation, final String theInput)
+            throws FormulaParseException {
+
+        stop();
+
+        final Spreadsheet.Batch batch = mySheet.new Batch();
+        final List<Cell> dirty;
+        try {
+            batch.set(theLocation, theInput);
+            dirty = batch.apply();
+        } catch (final FormulaParseException | RuntimeException e) {
+            batch.rollback();
+            start();
+            throw e;
+        }
+
+        if (dirty != null) {
+            synchronized (this) {
+                myPending = union(myPending, dirty);
+            }
+        }
+        start();
+        return dirty != null;
+    }
+
+    /**
+     * Reads a CSV file into the spreadsheet, see SpreadsheetCsv, and 
+     * queues the recalculation of its cells and their dependents instead
+     * of recalculating them on the calling thread. Waits for the 
+     * recalculation in flight to stop at its current level first.
+     * @param theFile the file
+     * @return true if the cells were applied, false if they were rejected
+     *         because they would create a cycle
+     * @throws IOException if the file cannot be read or is not valid, 
+     *         the spreadsheet is left as it was
+     */
+    public boolean readCsv(final Path theFile) throws IOException {
+
+        stop();
+
+        final Spreadsheet.Batch batch = mySheet.new Batch();
+        final List<Cell> dirty;
+        try {
+            SpreadsheetCsv.read(batch, theFile);
+            dirty = batch.apply();
+        } catch (final IOException | RuntimeException e) {
+            batch.rollback();
+            start();
+            throw e;
+        }
+
+        if (dirty != null) {
+            synchronized (this) {
+                myPending = union(myPending, dirty);
+            }
+        }
+        start();
+        return dirty != null;
+    }
+
+    /**
+     * Stops the recalculation in flight and drops every queued cell,
+     * before the spreadsheet is changed other than through edit, e.g.
+     * cleared or loaded.
+     */
+    public void discard() {
+        stop();
+        synchronized (this) {
+            myPending = new ArrayList<Cell>();
+        }
+    }
+
+    /**
+     * Waits until every queued cell has been evaluated.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitIdle() throws InterruptedException {
+        final Future<?> recalculation = myRecalculation;
+
+        if (recalculation != null) {
+            try {
+                recalculation.get();
+            } catch (final ExecutionException e) {
+                throw new IllegalStateException("Recalculation failed", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Returns whether cells are queued or being evaluated.
+     * @return true if busy
+     */
+    public boolean isBusy() {
+        return myRecalculation != null && !myRecalculation.isDone();
+    }
+
+    /**
+     * Stops the engine thread, queued cells are left unevaluated.
+     */
+    public void shutdown() {
+        stop();
+        myExecutor.shutdown();
+    }
+
+    /**
+     * Adds the PropertyChangeListener thePcl to the list of PropertyChangeListeners
+     * managed by objects of this class.
+     * @param thePcl the PropertyChangeListener added.
+     */
+    public void addPropertyChangeListener(final PropertyChangeListener thePcl) {
+        myPcs.addPropertyChangeListener(thePcl);
+    }
+
+    /**
+     * Removes the PropertyChangeListener thePcl from the list of PropertyChangeListeners
+     * managed by objects of this class.
+     * @param thePcl the PropertyChangeListener removed.
+     */
+    public void removePropertyChangeListener(final PropertyChangeListener thePcl) {
+        myPcs.removePropertyChangeListener(thePcl);
+    }
+
+
+    /////////////////////////// PRIVATE HELPER METHODS //////////////////////////////////////
+
+
+    /**
+     * Stops the recalculation in flight after its current level and waits
+     * for it, its unevaluated cells go back into the queue.
+     */
+    private void stop() {
+
+        if (myRecalculation == null) {
+            return;
+        }
+        myCancelled = true;
+        boolean interrupted = false;
+        
+        // the spreadsheet must not change under the engine, so an
+        // interrupt does not end the wait
+        while (true) {
+            try {
+                awaitIdle();
+                break;
+            } catch (final InterruptedException e) {
+                interrupted = true;
+            } catch (final IllegalStateException e) {
+                // the engine thread is idle again, a later edit starts afresh
+                break;
+            }
+        }
+        myRecalculation = null;
+        myCancelled = false;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues a recalculation of the pending cells, if there are any.
+     */
+    private void start() {
+
+        synchronized (this) {
+            if (myPending.isEmpty()) {
+                return;
+            }
+        }
+        myRecalculation = myExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                recalculate();
+            }
+        });
+    }
+
+    /**
+     * Evaluates the pending cells on the engine thread.
+     */
+    private void recalculate() {
+
+        final List<Cell> dirty;
+        synchronized (this) {
+            dirty = myPending;
+            myPending = new ArrayList<Cell>();
+        }
+        for (Cell c: dirty) {
+            if (c.getId() >= myOldValues.length) {
+                myOldValues = Arrays.copyOf(myOldValues, Math.max(c.getId() + 1, 
+                                                                  2 * myOldValues.length));
+            }
+            myOldValues[c.getId()] = c.getValue();
+        }
+
+        final Changes changes = new Changes();
+        final List<Cell> remaining;
+        try {
+            remaining = mySheet.evaluateInOrder(dirty, changes);
+        } catch (final RuntimeException e) {
+            // the topological sort stopped halfway through its counts
+            for (Cell c: dirty) {
+                c.resetInDegreeSort();
+            }
+            // the level that failed has values computed before the failure
+            changes.record(dirty);
+            changes.publish();
+            myPcs.firePropertyChange(FAILED, null, e);
+            myPcs.firePropertyChange(DONE, null, dirty.size());
+            return;
+        }
+
+        changes.publish();
+        if (myCancelled) {
+            synchronized (this) {
+                myPending = union(remaining, myPending);
+            }
+        } else {
+            // cells left on a cycle keep their values
+            myPcs.firePropertyChange(DONE, null, dirty.size());
+        }
+    }
+
+    /**
+     * Returns the cells of two lists, each once.
+     * @param theFirst the first cells
+     * @param theSecond the second cells
+     * @return List the union
+     */
+    private static List<Cell> union(final List<Cell> theFirst, final List<Cell> theSecond) {
+
+        final List<Cell> union = new ArrayList<Cell>(theFirst.size() + theSecond.size());
+        final BitSet listed = new BitSet();
+
+        addNew(union, listed, theFirst);
+        addNew(union, listed, theSecond);
+        return union;
+    }
+
+    /**
+     * Adds the cells not listed yet to a list.
+     * @param theList the list
+     * @param theListed ids of the cells in theList
+     * @param theCells the cells to add
+     */
+    private static void addNew(final List<Cell> theList, final BitSet theListed,
+                               final List<Cell> theCells) {
+        for (Cell c: theCells) {
+            if (!theListed.get(c.getId())) {
+                theListed.set(c.getId());
+                theList.add(c);
+            }
+        }
+    }
+
+
+    /////////////////////////// INNER CLASSES //////////////////////////////////////
+
+
+    /**
+     * Collects the cells whose value changed level by level and publishes
+     * them with the progress of a recalculation.
+     */
+    private final class Changes implements Spreadsheet.Progress {
+
+        /**
+         * Time of the last PROGRESS property change.
+         */
+        private long myLastReport = System.nanoTime();
+
+        /**
+         * Addresses of the cells changed since the last CHANGED property change.
+         */
+        private long[] myChanged = new long[INITIAL_CHANGES];
+
+        /**
+         * Number of addresses in myChanged.
+         */
+        private int myChangedCount;
+
+        /**
+         * Ids of the cells recorded as changed so far.
+         */
+        private final BitSet myRecorded = new BitSet();
+
+        @Override
+        public boolean levelEvaluated(final List<Cell> theLevel, final int theEvaluated,
+                                      final int theTotal) {
+            record(theLevel);
+
+            final long now = System.nanoTime();
+            if (now - myLastReport >= PROGRESS_INTERVAL) {
+                myLastReport = now;
+                publish();
+                myPcs.firePropertyChange(PROGRESS, theEvaluated, theTotal);
+            }
+            return !myCancelled;
+        }
+
+        /**
+         * Records the cells whose value changed, each once per recalculation.
+         * @param theCells the cells
+         */
+        void record(final List<Cell> theCells) {
+            for (Cell c: theCells) {
+                if (!myRecorded.get(c.getId()) && c.getValue() != myOldValues[c.getId()]) {
+                    myRecorded.set(c.getId());
+                    if (myChangedCount == myChanged.length) {
+                        myChanged = Arrays.copyOf(myChanged, 2 * myChangedCount);
+                    }
+                    myChanged[myChangedCount++] = CellAddress.encode(c.getRow(), c.getColumn());
+                }
+            }
+        }
+
+        /**
+         * Fires a CHANGED property change if cells changed since the last one.
+         */
+        void publish() {
+            if (myChangedCount > 0) {
+                final long[] changed = Arrays.copyOf(myChanged, myChangedCount);
+                myChangedCount = 0;
+                myPcs.firePropertyChange(CHANGED, null, changed);
+            }
+        }
+    }
+}
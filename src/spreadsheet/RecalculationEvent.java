@@ -0,0 +1,49 @@
+package spreadsheet;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+/**
+ * Flight Recorder event of a recalculation pass, the evaluation of the
+ * cells dirtied by an edit, of the entire spreadsheet, or of a stale
+ * cell and its stale precedents in lazy mode.
+ *
+ * @author Dmitriy Onishchenko
+ * @version 26 February 2016
+ */
+@Name("spreadsheet.Recalculation")
+@Label("Recalculation")
+@Category("Spreadsheet")
+@Description("A pass evaluating cells in dependency order")
+@StackTrace(false)
+final class RecalculationEvent extends jdk.jfr.Event {
+
+    /**
+     * The address of the cell pulled in lazy mode, null for a pass
+     * over dirty cells.
+     */
+    @Label("Cell")
+    String cell;
+
+    /**
+     * Number of cells to evaluate.
+     */
+    @Label("Cells")
+    int cells;
+
+    /**
+     * Number of cells evaluated, fewer than cells after a stop or a cycle.
+     */
+    @Label("Cells Evaluated")
+    int cellsEvaluated;
+
+    /**
+     * Largest number of cells queued at once.
+     */
+    @Label("Queue Depth")
+    int queueDepth;
+}
@@ -2,9 +2,20 @@ package spreadsheet;
 
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
+import java.util.AbstractList;
 import java.util.ArrayDeque;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 
 
@@ -23,6 +34,22 @@ public class Spreadsheet {
      */
     public static final String CYCLE = "Cycle found";    
     
+    /**
+     * Flag for property change listener, fired once per applied batch
+     * with the list of edited locations as the new value.
+     */
+    public static final String BATCH = "Batch applied";
+    
+    /**
+     * Number of rows a spreadsheet can grow to.
+     */
+    public static final int MAX_ROWS = 1 << 20;
+    
+    /**
+     * Number of columns a spreadsheet can grow to, A to XFD.
+     */
+    public static final int MAX_COLUMNS = 1 << 14;
+    
     /**
      * The value of a cell that is out of bounds.
      */
@@ -34,15 +61,172 @@ public class Spreadsheet {
     private static final int SIZE = 4;
     
     /**
-     * 2-D Array of Cells our spreadsheet
+     * The precedents of a cell without cell references.
+     */
+    private static final long[] NO_ADDRESSES = {};
+    
+    /**
+     * Initial capacity of the buffer of dependent ids.
+     */
+    private static final int INITIAL_DEPENDENTS = 64;
+    
+    /**
+     * Log2 of the number of cells of a page of the table of cells by id.
+     */
+    private static final int ID_PAGE_BITS = 12;
+    
+    /**
+     * Initial number of pages of the table of cells by id.
+     */
+    private static final int INITIAL_PAGES = 4;
+    
+    /**
+     * Flag marking a sign (unary + or -) on the parser's operator stack.
+     */
+    private static final int UNARY = 0x10000;
+    
+    /**
+     * Initial depth of the parser's operator stack.
+     */
+    private static final int PARSE_DEPTH = 16;
+    
+    /**
+     * Default number of independent cells a dependency level must have 
+     * before it is evaluated in parallel.
+     */
+    private static final int PARALLEL_THRESHOLD = 1024;
+    
+    /**
+     * Number of cells one parallel task evaluates without splitting further.
+     */
+    private static final int TASK_GRAIN = 256;
+    
+    /**
+     * Default number of evaluations after which a formula is promoted
+     * when tiered compilation is on.
+     */
+    private static final int PROMOTION_THRESHOLD = 1000;
+    
+    /**
+     * The occupied cells of our spreadsheet, empty locations have no Cell.
+     */
+    private CellMap spreadsheet;
+    
+    /**
+     * The values of the occupied cells, by location in primitive arrays,
+     * so reading a value does not go through its Cell.
+     */
+    private final ValueStore myValues;
+    
+    /**
+     * The number of rows, at least mySize and one more than the 
+     * largest occupied row.
+     */
+    private int myNumRows;
+    
+    /**
+     * The number of columns, at least mySize and one more than the 
+     * largest occupied column.
+     */
+    private int myNumColumns;
+    
+    /**
+     * The number of rows and columns of the spreadsheet when empty.
      */
-    private Cell spreadsheet[][];    
+    private final int mySize;
+    
+    /**
+     * The occupied cells indexed by id in pages of 2^ID_PAGE_BITS cells,
+     * the dependency graph refers to cells by id. Pages are allocated as
+     * cells are created and never copied.
+     */
+    private Cell[][] myCellsById;
+    
+    /**
+     * The id of the next new cell.
+     */
+    private int myNextId;
+    
+    /**
+     * The ranges formulas refer to, one record per range.
+     */
+    private RangeIndex myRanges;
+    
+    /**
+     * Buffer of dependent cell ids filled by dependentsOf.
+     */
+    private int[] myDependentIds;
+    
+    /**
+     * Incrementally maintained aggregates of each column covered by a 
+     * range, null for other columns.
+     */
+    private ColumnAggregates[] myAggregates;
     
     /**
      * Property change support.
      */
     private PropertyChangeSupport myPcs;
     
+    /**
+     * True if an edit only re-evaluates the edited cell and the cells
+     * that depend on it, false to re-evaluate the entire spreadsheet.
+     */
+    private boolean myIncrementalRecalc;
+    
+    /**
+     * True if an edit only marks the edited cell and its dependents stale,
+     * their values are computed when they are read.
+     */
+    private boolean myLazyRecalc;
+    
+    /**
+     * Ids of the stale cells, only used in lazy mode.
+     */
+    private BitSet myStale;
+    
+    /**
+     * Number of stale cells.
+     */
+    private int myStaleCount;
+    
+    /**
+     * True while pull is computing stale cells.
+     */
+    private boolean myPulling;
+    
+    /**
+     * Minimum number of cells in a dependency level for it to be 
+     * evaluated in parallel.
+     */
+    private int myParallelThreshold;
+    
+    /**
+     * True if formulas of hot cells are promoted to MethodHandle chains.
+     */
+    private boolean myTieredCompilation;
+    
+    /**
+     * Number of evaluations after which a formula is promoted.
+     */
+    private int myPromotionThreshold;
+    
+    /**
+     * Cells whose current formula has been promoted.
+     */
+    private Set<Cell> myPromoted;
+    
+    /**
+     * The journal every applied edit is appended to, null if edits 
+     * are not journaled.
+     */
+    private EditJournal myJournal;
+    
+    /**
+     * Recalculation statistics, published through JMX once registered.
+     */
+    private final SpreadsheetMetrics myMetrics;
+    
     /**
      * Default Constructor
      */
@@ -52,21 +236,33 @@ public class Spreadsheet {
     
     /**
      * Constructor
-     * @param size the size of the spreadsheet
+     * @param size the number of rows and columns of the empty spreadsheet,
+     *        it grows as cells beyond them are used, up to MAX_ROWS by MAX_COLUMNS
      */
     public Spreadsheet(int size) { 
         
-        myPcs = new PropertyChangeSupport(this);
+        if (size < 1) {
+            throw new IllegalArgumentException("Size must be positive");
+        }
         
-        spreadsheet = new Cell[size][size];  
+        myPcs = new PropertyChangeSupport(this);
+        myIncrementalRecalc = true;
+        myParallelThreshold = PARALLEL_THRESHOLD;
+        myPromotionThreshold = PROMOTION_THRESHOLD;
+        myPromoted = ConcurrentHashMap.newKeySet();
         
-        // populate the spreadsheet with cells
-        for (int row = 0; row < spreadsheet.length; row++) {
-            for (int col = 0; col < spreadsheet[row].length; col++) {
-                
-                spreadsheet[row][col] = new Cell(row, col);           
-            }            
-        }        
+        // cells are only created once a location is used
+        spreadsheet = new CellMap();
+        myValues = new ValueStore();
+        mySize = size;
+        myNumRows = Math.min(size, MAX_ROWS);
+        myNumColumns = Math.min(size, MAX_COLUMNS);
+        myCellsById = new Cell[INITIAL_PAGES][];
+        myRanges = new RangeIndex();
+        myDependentIds = new int[INITIAL_DEPENDENTS];
+        myAggregates = new ColumnAggregates[0];
+        myStale = new BitSet();
+        myMetrics = new SpreadsheetMetrics(this);
     }
     
     
@@ -74,27 +270,56 @@ public class Spreadsheet {
     
     
     /**
-     * Returns the number of rows in the spreadsheet.
+     * Returns the number of rows in the spreadsheet, which grows as
+     * cells below the last row are used.
      * @return int number of rows.
      */
     public int getNumRows() {        
-        return spreadsheet.length;
+        return myNumRows;
     }
 
     /**
-     * Returns the number of columns in the spreasheet.
+     * Returns the number of columns in the spreasheet, which grows as
+     * cells right of the last column are used.
      * @return int number of columns
      */
     public int getNumColumns() {        
-        return spreadsheet[0].length;
+        return myNumColumns;
     } 
     
     /**
-     * Returns the spreadsheet 2-D array used for JTable.
-     * @return Cell[][] the spreadsheet
+     * Returns the number of cells that have been used, empty 
+     * locations are not counted.
+     * @return int number of occupied cells
+     */
+    public int getNumOccupiedCells() {
+        return spreadsheet.size();
+    }
+    
+    /**
+     * Returns the recalculation statistics of this spreadsheet, register
+     * them to publish them through JMX.
+     * @return SpreadsheetMetrics the metrics
+     */
+    public SpreadsheetMetrics getMetrics() {
+        return myMetrics;
+    }
+    
+    /**
+     * Returns the occupied cells, in no particular order.
+     * @return List the occupied cells
+     */
+    List<Cell> occupiedCells() {
+        return spreadsheet.values();
+    }
+    
+    /**
+     * Returns the occupied cells in an order where every cell comes 
+     * after the cells its formula refers to.
+     * @return List the occupied cells in evaluation order
      */
-    public Cell[][] getSpreadsheet() {
-        return spreadsheet;
+    List<Cell> evaluationOrder() {
+        return topologicalOrder(spreadsheet.values());
     }
     
     /**
@@ -102,26 +327,95 @@ public class Spreadsheet {
      * @param cellToken the cells location in spreadsheet 
      */
     public String getCellFormula(CellToken cellToken) {
+        return getCellFormula(cellToken.getAddress());
+    }    
+    
+    /**
+     * a String representation of the formula of the Cell at an address.
+     * @param address the cells address, see CellAddress
+     * @return String the formula, empty for an empty location
+     */
+    public String getCellFormula(long address) {
         
-        final int row = cellToken.getRow();
-        final int col = cellToken.getColumn();
-        
-        return spreadsheet[row][col].getFormula();     
+        final Cell cell = peekCell(address);
         
-    }    
+        return cell == null ? "" : cell.getFormula();     
+    }
     
     /**
      * Returns the Cell in the location of the cellToken.
+     * An empty location gets a new Cell, use peekCell to look
+     * at a location without occupying it. The spreadsheet grows to 
+     * contain the location.
      * @param cellToken the cellToken (location)
      * @return Cell the cell at that location
      */
     public Cell getCell(CellToken cellToken) {        
-        final int row = cellToken.getRow();
-        final int col = cellToken.getColumn();   
-             
-        return spreadsheet[row][col];        
+        return getCell(cellToken.getRow(), cellToken.getColumn());
+    }
+    
+    /**
+     * Returns the Cell at an address, occupying an empty location
+     * like getCell(CellToken).
+     * @param address the address, see CellAddress
+     * @return Cell the cell at that location
+     */
+    public Cell getCell(long address) {
+        return getCell(CellAddress.row(address), CellAddress.column(address));
+    }
+    
+    /**
+     * Returns the Cell at row, column, occupying an empty location.
+     * @param row the row
+     * @param col the column
+     * @return Cell the cell at that location
+     */
+    private Cell getCell(final int row, final int col) {
+        Cell cell = peekCell(row, col);
+        if (cell == null) {
+            cell = new Cell(row, col, myNextId, myValues);
+            spreadsheet.put(cell);
+            addCellById(cell);
+            myNextId++;
+            myNumRows = Math.max(myNumRows, row + 1);
+            myNumColumns = Math.max(myNumColumns, col + 1);
+        }
+        return cell;        
     }    
     
+    /**
+     * Returns the Cell in the location of the cellToken, or null if 
+     * the location is empty.
+     * @param cellToken the cellToken (location)
+     * @return Cell the cell at that location or null
+     */
+    public Cell peekCell(CellToken cellToken) {
+        return peekCell(cellToken.getRow(), cellToken.getColumn());
+    }
+    
+    /**
+     * Returns the Cell at an address, or null if the location is empty.
+     * @param address the address, see CellAddress
+     * @return Cell the cell at that location or null
+     */
+    public Cell peekCell(long address) {
+        return peekCell(CellAddress.row(address), CellAddress.column(address));
+    }
+    
+    /**
+     * Returns the Cell at row, column or null if the location is empty,
+     * which every location beyond the last row or column is.
+     * @param row the row
+     * @param col the column
+     * @return Cell the cell at that location or null
+     * @throws IndexOutOfBoundsException if the location is outside of 
+     *         MAX_ROWS by MAX_COLUMNS
+     */
+    public Cell peekCell(int row, int col) {
+        checkBounds(row, col);
+        return spreadsheet.get(row, col);
+    }
+    
     /**
      * Returns the value of the cell in the location of the cellToken.
      * @param cellToken the location of cell
@@ -131,7 +425,97 @@ public class Spreadsheet {
         int row = cellToken.getRow();
         int col = cellToken.getColumn();
         
-        return spreadsheet[row][col].getValue();        
+        return getCellValue(row, col);        
+    }
+    
+    /**
+     * Returns the value of the cell at an address. Empty locations are 0.
+     * @param address the address, see CellAddress
+     * @return int value the value of that Cell
+     */
+    public int getCellValue(long address) {
+        return getCellValue(CellAddress.row(address), CellAddress.column(address));
+    }
+    
+    /**
+     * Returns the value of the cell at row, column. Empty locations are 0.
+     * The value is read from the value store, only a stale cell is 
+     * looked up to compute its value first.
+     * @param row the row
+     * @param col the column
+     * @return int value the value of that Cell
+     */
+    public int getCellValue(int row, int col) {
+        
+        if (myStaleCount > 0) {
+            final Cell cell = peekCell(row, col);
+            return cell == null ? 0 : cell.getValue();
+        }
+        checkBounds(row, col);
+        return myValues.get(row, col);
+    }
+    
+    /**
+     * Returns whether edits are recalculated incrementally.
+     * @return true if only the edited cell and its dependents are re-evaluated
+     */
+    public boolean isIncrementalRecalculation() {
+        return myIncrementalRecalc;
+    }
+    
+    /**
+     * Returns whether edits are recalculated lazily.
+     * @return true if values are only computed when they are read
+     */
+    public boolean isLazyRecalculation() {
+        return myLazyRecalc;
+    }
+    
+    /**
+     * Returns the number of cells whose value is out of date and will be
+     * computed when it is read, always 0 unless recalculation is lazy.
+     * @return int the number of stale cells
+     */
+    public int getStaleCount() {
+        return myStaleCount;
+    }
+    
+    /**
+     * Returns whether formulas of hot cells are promoted to compiled 
+     * MethodHandle chains.
+     * @return true if tiered compilation is on
+     */
+    public boolean isTieredCompilation() {
+        return myTieredCompilation;
+    }
+    
+    /**
+     * Returns the number of evaluations after which a formula is promoted.
+     * @return int the promotion threshold
+     */
+    public int getPromotionThreshold() {
+        return myPromotionThreshold;
+    }
+    
+    /**
+     * Returns the locations of the cells whose formula has been promoted.
+     * @return List the promoted cells
+     */
+    public List<CellToken> getPromotedCells() {
+        final List<CellToken> promoted = new ArrayList<CellToken>(myPromoted.size());
+        
+        for (Cell c: myPromoted) {
+            promoted.add(new CellToken(c.getRow(), c.getColumn()));
+        }
+        return promoted;
+    }
+    
+    /**
+     * Returns the number of cells whose formula has been promoted.
+     * @return int the number of promoted cells
+     */
+    public int getPromotedCount() {
+        return myPromoted.size();
     }
     
   
@@ -147,8 +531,9 @@ public class Spreadsheet {
      * A formula is defined as a sequence of tokens that represents
      * a legal infix expression.
      * 
-     * A token can consist of a numeric literal, a cell reference, or an
-     * operator (+, -, *, /).
+     * A token can consist of a numeric literal, a cell reference, an
+     * aggregate function over a range of cells (SUM, AVG, MIN or MAX,
+     * e.g. SUM(A1:A100)), or an operator (+, -, *, /).
      * 
      * Multiplication (*) and division (/) have higher precedence than
      * addition (+) and subtraction (-).  Among operations within the same
@@ -157,6 +542,24 @@ public class Spreadsheet {
      * This algorithm follows the algorithm described in Weiss, pages 105-108.
      */
     public Stack getFormula(String formula) {
+        final FormulaParseEvent event = new FormulaParseEvent();
+        final long start = myMetrics.parseStarted();
+        event.begin();
+        try {
+            return toPostfix(formula);
+        } finally {
+            event.formulaLength = formula.length();
+            event.commit();
+            myMetrics.parsed(start);
+        }
+    }
+    
+    /**
+     * Does the work of getFormula.
+     * @param formula the formula
+     * @return Stack the postfix expression
+     */
+    private Stack toPostfix(String formula) {
         Stack returnStack = new Stack();  // stack of Tokens (representing a postfix expression)
         Boolean error = false;
         char ch = ' ';
@@ -252,15 +655,26 @@ public class Spreadsheet {
                 returnStack.push(new LiteralToken(literalValue));
 
             } else if (Character.isUpperCase(ch)) {
-                // We found a cell reference token
-                cellToken = new CellToken();
-                index = getCellToken(formula, index, cellToken);
-                if (cellToken.getRow() == BADCELL) {                   
+                // We found a function over a range or a cell reference token
+                FunctionToken functionToken = new FunctionToken();
+                int next = getFunctionToken(formula, index, functionToken);
+                if (next == BADCELL) {
                     error = true;
                     break;
+                } else if (next != index) {
+                    // place the aggregate on the output stack, it is an operand
+                    returnStack.push(functionToken);
+                    index = next;
                 } else {
-                    // place the cell reference on the output stack
-                    returnStack.push(cellToken);
+                    cellToken = new CellToken();
+                    index = getCellToken(formula, index, cellToken);
+                    if (cellToken.getRow() == BADCELL) {                   
+                        error = true;
+                        break;
+                    } else {
+                        // place the cell reference on the output stack
+                        returnStack.push(cellToken);
+                    }
                 }
 
             } else {
@@ -284,6 +698,185 @@ public class Spreadsheet {
       
 
     
+    /**
+     * parseFormula
+     * 
+     * Parses an infix formula in a single pass, building its expression 
+     * tree directly instead of a postfix stack of tokens. Letters may be 
+     * of either case. The returned tree is compiled, and its
+     * getCellReferences and getRangeReferences are the precedents of the
+     * formula.
+     * 
+     * Tokens are the ones of getFormula, with the same precedence and left
+     * to right grouping. A + or - in front of an operand is a unary sign
+     * and binds tighter than any binary operator.
+     * 
+     * @param formula the formula, without a leading '='
+     * @return ExpressionTree the compiled expression tree
+     * @throws FormulaParseException if the formula is not a legal expression
+     *         or refers to a cell outside of the spreadsheet
+     */
+    public ExpressionTree parseFormula(String formula) throws FormulaParseException {
+        final FormulaParseEvent event = new FormulaParseEvent();
+        final long start = myMetrics.parseStarted();
+        event.begin();
+        try {
+            return compile(formula);
+        } finally {
+            event.formulaLength = formula.length();
+            event.commit();
+            myMetrics.parsed(start);
+        }
+    }
+    
+    /**
+     * Does the work of parseFormula.
+     * @param formula the formula, without a leading '='
+     * @return ExpressionTree the compiled expression tree
+     * @throws FormulaParseException if the formula is not a legal expression
+     */
+    private ExpressionTree compile(String formula) throws FormulaParseException {
+        
+        final Deque<ExpressionTreeNode> operands = new ArrayDeque<ExpressionTreeNode>();
+        
+        // operators waiting for their right operand, a char plus UNARY
+        // for signs, and their positions in the formula
+        int[] operators = new int[PARSE_DEPTH];
+        int[] positions = new int[PARSE_DEPTH];
+        int top = -1;
+        
+        boolean expectOperand = true;
+        int index = 0;
+        
+        while ((index = skipWhitespace(formula, index)) < formula.length()) {
+            
+            final char ch = formula.charAt(index);
+            int operator = -1;
+            
+            if (expectOperand) {
+                
+                if (ch == OperatorToken.LeftParen) {
+                    operator = ch;
+                } else if (ch == OperatorToken.Plus || ch == OperatorToken.Minus) {
+                    // a sign, applied once its operand has been parsed
+                    operator = ch | UNARY;
+                } else if (Character.isDigit(ch)) {
+                    int literalValue = 0;
+                    while (index < formula.length() && Character.isDigit(formula.charAt(index))) {
+                        literalValue = (literalValue * 10) + (formula.charAt(index) - '0');
+                        index++;
+                    }
+                    operands.push(new ExpressionTreeNode(new LiteralToken(literalValue)));
+                    expectOperand = false;
+                } else if (CellAddress.isColumnLetter(ch)) {
+                    index = parseReference(formula, index, operands);
+                    expectOperand = false;
+                } else {
+                    throw new FormulaParseException("Expected a number, cell or '('", index);
+                }
+                
+            } else if (ch == ')') {
+                while (top >= 0 && operators[top] != OperatorToken.LeftParen) {
+                    reduce(operands, operators[top--]);
+                }
+                if (top < 0) {
+                    throw new FormulaParseException("Unbalanced ')'", index);
+                }
+                top--;
+                index++;
+                
+            } else if (OperatorToken.isOperator(ch) && ch != OperatorToken.LeftParen) {
+                // apply waiting operators of the same or higher priority,
+                // which groups left to right
+                final int priority = OperatorToken.operatorPriority(ch);
+                while (top >= 0 && operators[top] != OperatorToken.LeftParen 
+                        && parsePriority(operators[top]) >= priority) {
+                    reduce(operands, operators[top--]);
+                }
+                operator = ch;
+                expectOperand = true;
+                
+            } else {
+                throw new FormulaParseException("Expected an operator or ')'", index);
+            }
+            
+            if (operator >= 0) {
+                if (++top == operators.length) {
+                    operators = Arrays.copyOf(operators, 2 * top);
+                    positions = Arrays.copyOf(positions, 2 * top);
+                }
+                operators[top] = operator;
+                positions[top] = index;
+                index++;
+            }
+        }
+        
+        if (expectOperand) {
+            throw new FormulaParseException("Expected a number, cell or '('", index);
+        }
+        while (top >= 0) {
+            if (operators[top] == OperatorToken.LeftParen) {
+                throw new FormulaParseException("Unbalanced '('", positions[top]);
+            }
+            reduce(operands, operators[top--]);
+        }
+        
+        final ExpressionTree expressionTree = new ExpressionTree();
+        expressionTree.setRoot(operands.pop());
+        return expressionTree;
+    }
+    
+    /**
+     * Changes the formula of the cell at cellToken and recalculates, like
+     * changeCellFormula, parsing the formula with parseFormula. The cell
+     * keeps the formula as written, parentheses included.
+     * A formula that does not parse leaves the spreadsheet as it was.
+     * @param cellToken the cell location
+     * @param formula the formula, without a leading '='
+     * @return true if the formula was changed, false if it was rejected
+     *         because it would create a cycle
+     * @throws FormulaParseException if the formula does not parse
+     */
+    public boolean setCellFormula(CellToken cellToken, String formula) throws FormulaParseException {
+        return commitFormula(cellToken, parseFormula(formula), formula.trim());
+    }
+    
+    /**
+     * applyAll
+     * 
+     * Applies a batch of edits as one transaction. All formulas and 
+     * dependencies are changed first, then cycles are looked for once and
+     * the union of the edited cells and their dependents is recalculated
+     * once, instead of once per edit.
+     * 
+     * An input is what a user types into a cell: "=" followed by a 
+     * formula, an integer, or anything else as plain text, empty to clear.
+     * 
+     * If the edits would create a cycle the spreadsheet is left as it was
+     * and a single CYCLE property change is fired, otherwise a single 
+     * BATCH property change lists the edited locations.
+     * 
+     * @param theEdits the input of each edited location
+     * @return true if the batch was applied, false if it was rejected
+     *         because it would create a cycle
+     * @throws FormulaParseException if an input does not parse, the 
+     *         spreadsheet is left as it was
+     */
+    public boolean applyAll(final Map<CellToken, String> theEdits) throws FormulaParseException {
+        
+        final Batch batch = new Batch();
+        
+        try {
+            for (Map.Entry<CellToken, String> edit: theEdits.entrySet()) {
+                batch.set(edit.getKey(), edit.getValue());
+            }
+        } catch (final FormulaParseException e) {
+            batch.rollback();
+            throw e;
+        }
+        return batch.commit();
+    }
+    
     /////////////////////////////// OTHER PUBLIC METHODS //////////////////////////////////////
     
     
@@ -292,13 +885,13 @@ public class Spreadsheet {
      * Prints out all of the values of each cell.
      */
     public void printValues() {
-        for (int row = 0; row < spreadsheet.length; row++) {
-            for (int col = 0; col < spreadsheet[row].length; col++) {
+        for (int row = 0; row < myNumRows; row++) {
+            for (int col = 0; col < myNumColumns; col++) {
 
-                if (col == spreadsheet[row].length - 1)
-                    System.out.println(spreadsheet[row][col].getValue());    
+                if (col == myNumColumns - 1)
+                    System.out.println(getCellValue(new CellToken(row, col)));    
                 else 
-                    System.out.print(spreadsheet[row][col].getValue() + ", "); 
+                    System.out.print(getCellValue(new CellToken(row, col)) + ", "); 
             }            
         }        
     }
@@ -309,13 +902,13 @@ public class Spreadsheet {
      */
     public void printAllFormulas() {
         
-        for (int row = 0; row < spreadsheet.length; row++) {
-            for (int col = 0; col < spreadsheet[row].length; col++) {
+        for (int row = 0; row < myNumRows; row++) {
+            for (int col = 0; col < myNumColumns; col++) {
 
-                if (col == spreadsheet[row].length - 1)
-                    System.out.println(spreadsheet[row][col].getFormula());    
+                if (col == myNumColumns - 1)
+                    System.out.println(getCellFormula(new CellToken(row, col)));    
                 else 
-                    System.out.print(spreadsheet[row][col].getFormula() + ", "); 
+                    System.out.print(getCellFormula(new CellToken(row, col)) + ", "); 
             }            
         }        
     }
@@ -326,10 +919,7 @@ public class Spreadsheet {
      */
     public void printCellFormula(CellToken cellToken) {
         
-        final int row = cellToken.getRow();
-        final int col = cellToken.getColumn();
-        
-        System.out.println(spreadsheet[row][col].getFormula());     
+        System.out.println(getCellFormula(cellToken));     
         
     }    
    
@@ -341,17 +931,8 @@ public class Spreadsheet {
      */
     public void updateCellDependency(CellToken cellToken, Stack expTreeTokenStack) {
         
-        Cell currentCell = spreadsheet[cellToken.getRow()][cellToken.getColumn()];        
-        LinkedList<Cell> dependents = currentCell.getDependentCells();
-        
-        // for current cells dependent cells remove it from 
-        // their adjacent list.
-        for (Cell c: dependents) {
-            c.removeAjacentCell(currentCell);          
-        }     
-        
-        // clear all exsisting dependencies 
-        currentCell.clearDependencies();
+        final List<CellToken> precedents = new ArrayList<CellToken>();
+        final List<FunctionToken> ranges = new ArrayList<FunctionToken>();
         
         // now update depending on new formula
         while (!expTreeTokenStack.isEmpty()) {
@@ -359,17 +940,169 @@ public class Spreadsheet {
             Token curToken = (Token) expTreeTokenStack.topAndPop();
             
             if (curToken instanceof CellToken) { 
-                
-                Cell dep = getCell((CellToken) curToken);                                            
-                currentCell.addDependent(dep);                
-                dep.addAdjacent(currentCell);                
-            }           
+                precedents.add((CellToken) curToken);
+            } else if (curToken instanceof FunctionToken) {
+                ranges.add((FunctionToken) curToken);
+            }
         }      
+        
+        final long[] addresses = new long[precedents.size()];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = precedents.get(i).getAddress();
+        }
+        setPrecedents(getCell(cellToken), addresses, ranges);
+    }
+    
+    /**
+     * Changes the formula of the cell at cellToken to the expression in
+     * expTreeTokenStack, updates its dependencies and recalculates.
+     * 
+     * The edit is checked for cycles before anything is changed, by 
+     * searching the cells that depend on the edited cell for one of its 
+     * new precedents or a cell inside one of its new ranges. A cyclic edit fires a CYCLE property change with
+     * the edited location as new value and leaves the spreadsheet as it was.
+     * 
+     * @param cellToken the cell location
+     * @param expTreeTokenStack the postfix stack of tokens
+     * @return true if the formula was changed, false if it was rejected
+     */
+    public boolean changeCellFormula(CellToken cellToken, Stack expTreeTokenStack) {
+        
+        final ExpressionTree expressionTree = new ExpressionTree();
+        expressionTree.buildExpressionTree(expTreeTokenStack);
+        
+        return commitFormula(cellToken, expressionTree, expressionTree.getFormula(expressionTree));
+    }
+    
+    /**
+     * Changes the cell at cellToken to plain text, which has no formula
+     * and the value 0, and recalculates the cells that depend on it.
+     * @param cellToken the cell location
+     * @param text the text, empty to clear the cell
+     */
+    public void changeCellText(CellToken cellToken, String text) {
+        
+        final Cell updateCell = getCell(cellToken);
+        
+        setPrecedents(updateCell, NO_ADDRESSES, new ArrayList<FunctionToken>());
+        updateCell.setExpressionTree(null);
+        updateCell.setFormula(text);
+        myPromoted.remove(updateCell);
+        
+        journal(updateCell);
+        recalculate(updateCell);
+    }
+    
+    /**
+     * Gives the cell at cellToken a new expression tree unless that
+     * would create a cycle, updates its dependencies and recalculates.
+     * @param cellToken the cell location
+     * @param expressionTree the compiled expression tree
+     * @param formula the formula text kept by the cell
+     * @return true if the formula was changed, false if it was rejected
+     */
+    private boolean commitFormula(CellToken cellToken, ExpressionTree expressionTree, 
+                                  String formula) {
+        
+        final long[] precedents = expressionTree.getCellAddresses();
+        final List<FunctionToken> ranges = expressionTree.getRangeReferences();
+        
+        if (createsCycle(cellToken.getAddress(), precedents, ranges)) {
+            myMetrics.cycleRejected();
+            myPcs.firePropertyChange(CYCLE, null, 
+                    new CellToken(cellToken.getRow(), cellToken.getColumn()));
+            return false;
+        }
+        
+        final Cell updateCell = getCell(cellToken);
+        
+        setPrecedents(updateCell, precedents, ranges);
+        updateCell.setExpressionTree(expressionTree);        
+        updateCell.setFormula(formula);
+        // the new formula starts out interpreted
+        myPromoted.remove(updateCell);
+        
+        journal(updateCell);
+        recalculate(updateCell);
+        return true;
+    }
+    
+    
+    /**
+     * Sets the recalculation mode. In incremental mode an edit only
+     * re-evaluates the edited cell and the cells that transitively depend
+     * on it, otherwise the entire spreadsheet is re-evaluated.
+     * @param theIncremental true for incremental recalculation
+     */
+    public void setIncrementalRecalculation(final boolean theIncremental) {
+        myIncrementalRecalc = theIncremental;
+    }
+    
+    /**
+     * Sets lazy recalculation. In lazy mode an edit only marks the edited
+     * cell and the cells that transitively depend on it stale, and reading
+     * a stale value computes it after pulling its stale precedents, so 
+     * cells that are never read cost nothing. Turning lazy mode off 
+     * computes every stale cell. Lazy mode takes precedence over the 
+     * incremental setting.
+     * @param theLazy true for lazy recalculation
+     */
+    public void setLazyRecalculation(final boolean theLazy) {
+        
+        if (!theLazy && myStaleCount > 0) {
+            final List<Cell> stale = new ArrayList<Cell>(myStaleCount);
+            for (int id = myStale.nextSetBit(0); id >= 0; id = myStale.nextSetBit(id + 1)) {
+                stale.add(cellById(id));
+            }
+            // stale cells are closed under dependents
+            evaluateInOrder(stale);
+            myStale.clear();
+            myStaleCount = 0;
+        }
+        myLazyRecalc = theLazy;
+    }
+    
+    /**
+     * Returns the minimum number of independent cells a dependency level
+     * needs to be evaluated in parallel.
+     * @return int the parallel threshold
+     */
+    public int getParallelThreshold() {
+        return myParallelThreshold;
+    }
+    
+    /**
+     * Sets the minimum number of independent cells a dependency level
+     * needs to be evaluated in parallel. Smaller levels are evaluated 
+     * sequentially, Integer.MAX_VALUE turns parallel evaluation off.
+     * @param theThreshold the parallel threshold, at least 1
+     */
+    public void setParallelThreshold(final int theThreshold) {
+        if (theThreshold < 1) {
+            throw new IllegalArgumentException("Parallel threshold must be positive");
+        }
+        myParallelThreshold = theThreshold;
+    }
+    
+    /**
+     * Turns tiered compilation on or off. When on, formulas start out
+     * interpreted and a cell's formula is compiled into a MethodHandle
+     * chain once it has been evaluated theThreshold times.
+     * Turning it off keeps formulas that were already promoted.
+     * @param theTiered true to turn tiered compilation on
+     * @param theThreshold evaluations needed for promotion, at least 1
+     */
+    public void setTieredCompilation(final boolean theTiered, final int theThreshold) {
+        if (theThreshold < 1) {
+            throw new IllegalArgumentException("Promotion threshold must be positive");
+        }
+        myTieredCompilation = theTiered;
+        myPromotionThreshold = theThreshold;
     }
     
     /**
-     * Changes the cell formula and recalculates value for entire
-     * spreadsheet. 
+     * Changes the cell formula and recalculates the values of the 
+     * spreadsheet, either incrementally or for the entire spreadsheet. 
      * @param cellToken the cell token
      * @param expTreeTokenStack the expression tree.
      */
@@ -382,27 +1115,87 @@ public class Spreadsheet {
         
         updateCell.setExpressionTree(expressionTree);        
         updateCell.setFormula(expressionTree.getFormula(expressionTree));
+        // the new formula starts out interpreted
+        myPromoted.remove(updateCell);
          
-        // perform topological sorting on this spreadsheet
-        // to figure out which cell to evaluate first
-        topologicalSort(); 
-        
+        journal(updateCell);
+        recalculate(updateCell);
+    }
+    
+    /**
+     * Sets the journal every applied edit is appended to.
+     * Recover the spreadsheet from the journal before setting it.
+     * @param theJournal the journal, null to stop journaling
+     */
+    public void setJournal(final EditJournal theJournal) {
+        myJournal = theJournal;
     }
     
     /**
      * Clears entire spreadsheet.  
      */
     public void clear() {
-
-        for (int row = 0; row < spreadsheet.length; row++) {
-            for (int col = 0; col < spreadsheet[row].length; col++) {
-
-                spreadsheet[row][col].reset();        
-            }            
-        }   
+        dropCells();
+        if (myJournal != null) {
+            myJournal.append(EditJournal.CLEAR, 0, 0, "");
+        }
+    }
+    
+    /**
+     * Drops every cell and range, without journaling.
+     */
+    private void dropCells() {
+        // dropping the cells empties every location
+        spreadsheet.clear();
+        myValues.clear();
+        myCellsById = new Cell[INITIAL_PAGES][];
+        myNextId = 0;
+        myNumRows = Math.min(mySize, MAX_ROWS);
+        myNumColumns = Math.min(mySize, MAX_COLUMNS);
+        myRanges.clear();
+        myAggregates = new ColumnAggregates[0];
+        myPromoted.clear();
+        myStale.clear();
+        myStaleCount = 0;
+        myMetrics.edgesReset(0);
     }
     
     
+    /**
+     * Replaces the content of the spreadsheet with the cells of a snapshot.
+     * Cells hold their saved values right away, their formulas and 
+     * dependency edges are decoded from the snapshot on first use.
+     * @param theSnapshot the snapshot
+     */
+    void load(final SpreadsheetSnapshot theSnapshot) {
+        
+        dropCells();
+        myNumRows = Math.max(myNumRows, Math.min(theSnapshot.getNumRows(), MAX_ROWS));
+        myNumColumns = Math.max(myNumColumns, Math.min(theSnapshot.getNumColumns(), MAX_COLUMNS));
+        
+        final int cells = theSnapshot.getNumCells();
+        
+        // the id of a loaded cell is its index in the snapshot
+        for (int id = 0; id < cells; id++) {
+            final Cell cell = new Cell(theSnapshot.row(id), theSnapshot.column(id), id, 
+                                     myValues, theSnapshot);
+            checkBounds(cell.getRow(), cell.getColumn());
+            spreadsheet.put(cell);
+            addCellById(cell);
+        }
+        myNextId = cells;
+        myMetrics.edgesReset(theSnapshot.getNumEdges() + theSnapshot.getNumRanges());
+        
+        for (int i = 0; i < theSnapshot.getNumRanges(); i++) {
+            final FunctionToken range = theSnapshot.range(i);
+            
+            myRanges.add(theSnapshot.rangeCell(i), range);
+            for (int col = range.getStart().getColumn(); col <= range.getEnd().getColumn(); col++) {
+                trackColumn(col);
+            }
+        }
+    }
+    
     /**
      * Adds the PropertyChangeListener thePcl to the list of PropertyChangeListeners
      * managed by objects of this class.
@@ -421,174 +1214,1198 @@ public class Spreadsheet {
         myPcs.removePropertyChangeListener(thePcl);
     }
     
-    //////////////////////////////// PRIVATE HELPER METHODS //////////////////////////////
-    
-    
     /**
-     * Performs a topological sort on the spreadsheet cells to determine 
-     * what order to evalute the Cells. 
+     * Computes an aggregate function over a range of cells. Only cells
+     * holding a formula count, an aggregate over none of them is 0.
+     * Columns covered by a range keep their aggregates up to date, so
+     * each column of the range costs O(log n) instead of a scan.
+     * Used by compiled expressions.
+     * @param function the function, see FunctionToken
+     * @param firstRow the first row, inclusive
+     * @param firstCol the first column, inclusive
+     * @param lastRow the last row, inclusive
+     * @param lastCol the last column, inclusive
+     * @return int the aggregate
      */
-    private void topologicalSort() {
+    int aggregate(int function, int firstRow, int firstCol, int lastRow, int lastCol) {
         
-        Queue<Cell> queue = new ArrayDeque<Cell>();  
-        int counter = 0;
-        queue.clear();
-        Cell vertex;    
+        long sum = 0;
+        int count = 0;
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
         
-        // add cells of indegree zero to queue
-        for (int row = 0; row < spreadsheet.length; row++) {
-            for (int col = 0; col < spreadsheet[row].length; col++) {
-                
-                Cell curCell = spreadsheet[row][col];                
+        for (int col = firstCol; col <= lastCol; col++) {
+            
+            final ColumnAggregates column = col < myAggregates.length ? myAggregates[col] : null;
+            
+            if (column != null) {
+                sum += column.sum(firstRow, lastRow);
+                count += column.count(firstRow, lastRow);
+                min = Math.min(min, column.min(firstRow, lastRow));
+                max = Math.max(max, column.max(firstRow, lastRow));
+                continue;
+            }
+            
+            for (int row = firstRow; row <= lastRow; row++) {
+                final Cell cell = peekCell(row, col);
                 
-                if (curCell.getInDegree() == 0) {
-                    queue.add(curCell);
-                }               
-            }            
+                if (cell != null && cell.hasExpTree()) {
+                    final int value = cell.getValue();
+                    sum += value;
+                    count++;
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                }
+            }
+        }
+        
+        if (count == 0) {
+            return 0;
+        }
+        switch (function) {
+        case FunctionToken.SUM:
+            return (int) sum;
+        case FunctionToken.AVG:
+            return (int) (sum / count);
+        case FunctionToken.MIN:
+            return min;
+        default:
+            return max;
+        }
+    }
+    
+    /**
+     * Called after theCell has been evaluated, keeps the aggregates
+     * of its column up to date.
+     * @param theCell the evaluated cell
+     */
+    void cellEvaluated(final Cell theCell) {
+        final int col = theCell.getColumn();
+        
+        if (col < myAggregates.length && myAggregates[col] != null) {
+            myAggregates[col].update(theCell.getRow(), theCell.hasExpTree(), theCell.getValue());
+        }
+    }
+    
+    /**
+     * Computes the value of a stale cell, after computing its stale
+     * precedents, those of its ranges included. Precedents are pulled
+     * depth first with an explicit stack, so long chains do not
+     * overflow the call stack. A cycle is cut where it closes, the
+     * precedent closing it keeps its old value.
+     * @param theCell the stale cell
+     */
+    void pull(final Cell theCell) {
+        
+        // only a cycle reads a stale cell while pulling
+        if (myPulling) {
+            return;
         }
+        myPulling = true;
+        try {
+            pullFrom(theCell);
+        } finally {
+            myPulling = false;
+        }
+    }
+    
+    /**
+     * Does the work of pull.
+     * @param theCell the stale cell
+     */
+    private void pullFrom(final Cell theCell) {
         
+        final RecalculationEvent event = new RecalculationEvent();
+        final long start = myMetrics.recalculationStarted(1);
+        event.begin();
+        final Deque<Cell> stack = new ArrayDeque<Cell>();
+        final BitSet expanded = new BitSet();
+        int evaluated = 0;
+        int depth = 1;
+        stack.push(theCell);
         
-        while (!queue.isEmpty()) {            
-            vertex = queue.remove();            
-            vertex.evaluate(this);
-            vertex.resetInDegreeSort();
-            counter++;
+        while (!stack.isEmpty()) {
+            final Cell cell = stack.peek();
             
-            // if vertex has adjacent cells
-            if (vertex.getOutDegree() > 0) {
-                
-                LinkedList<Cell> adjacents = vertex.getAdjacentCells();               
-                
-                // decrement the adjacent cells indegree
-                // add to queue if their indegree is zero
-                for (Cell adj: adjacents) {                    
+            if (!cell.isStale()) {
+                stack.pop();
+                continue;
+            }
+            if (expanded.get(cell.getId())) {
+                // every stale precedent has been pulled
+                stack.pop();
+                cell.evaluate(this);
+                myStale.clear(cell.getId());
+                myStaleCount--;
+                evaluated++;
+                continue;
+            }
+            expanded.set(cell.getId());
+            
+            for (int id: cell.dependencyIds()) {
+                if (id != IntSet.FREE) {
+                    pushStale(cellById(id), stack, expanded);
+                }
+            }
+            for (RangeIndex.Range range: myRanges.ranges(cell.getId())) {
+                pushStaleInRange(range, stack, expanded);
+            }
+            depth = Math.max(depth, stack.size());
+        }
+        myMetrics.recalculated(start, 1, evaluated, depth);
+        
+        event.end();
+        if (event.shouldCommit()) {
+            event.cell = label(theCell);
+            event.cells = evaluated;
+            event.cellsEvaluated = evaluated;
+            event.queueDepth = depth;
+            event.commit();
+        }
+    }
     
-                    adj.setInDegreeSort(adj.getInDegreeSort() - 1);
-                    
-                    if (adj.getInDegreeSort() == 0) {
-                        queue.add(adj);
-                    }                    
-                }               
-            }          
-        }         
+    /**
+     * Records that the formula of theCell has been promoted.
+     * @param theCell the promoted cell
+     */
+    void cellPromoted(final Cell theCell) {
+        myPromoted.add(theCell);
+    }
+    
+    //////////////////////////////// PRIVATE HELPER METHODS //////////////////////////////
+    
+    
+    /**
+     * Replaces the precedents of theCell, keeping the dependency
+     * and adjacency lists of both sides of every edge in step.
+     * Ranges are kept as one record each in the range index, the cells 
+     * inside a range get no edges.
+     * @param theCell the cell whose formula changed
+     * @param thePrecedents the addresses the new formula refers to
+     * @param theRanges the ranges the new formula refers to
+     */
+    private void setPrecedents(final Cell theCell, final long[] thePrecedents,
+                               final List<FunctionToken> theRanges) {
+        
+        final DependencyUpdateEvent event = new DependencyUpdateEvent();
+        event.begin();
+        final int oldEdges = theCell.getInDegree() + myRanges.ranges(theCell.getId()).length;
+        
+        // for current cells dependent cells remove it from 
+        // their adjacent list.
+        for (int id: theCell.dependencyIds()) {
+            if (id != IntSet.FREE) {
+                cellById(id).removeAjacentCell(theCell);          
+            }
+        }     
+        
+        // clear all exsisting dependencies 
+        theCell.clearDependencies();
+        
+        for (long address: thePrecedents) {
+            Cell dep = getCell(address);                                            
+            theCell.addDependent(dep);                
+            dep.addAdjacent(theCell);                
+        }
+        
+        myRanges.remove(theCell.getId());
+        for (FunctionToken range: theRanges) {
+            // out of bounds ranges are rejected like cell references
+            peekCell(range.getStart());
+            peekCell(range.getEnd());
+            myRanges.add(theCell.getId(), range);
+            
+            for (int col = range.getStart().getColumn(); col <= range.getEnd().getColumn(); col++) {
+                trackColumn(col);
+            }
+        }
+        myMetrics.edgesChanged(theCell.getInDegree() + theRanges.size() - oldEdges);
         
-        if (counter != getNumRows() * getNumColumns()) {            
-            myPcs.firePropertyChange(CYCLE , getNumRows() * getNumColumns() , counter);
+        event.end();
+        if (event.shouldCommit()) {
+            event.cell = label(theCell);
+            event.precedents = thePrecedents.length;
+            event.ranges = theRanges.size();
+            event.commit();
         }
     }
     
     /**
-     * getCellToken
-     * 
-     * Assuming that the next chars in a String (at the given startIndex)
-     * is a cell reference, set cellToken's column and row to the
-     * cell's column and row.
-     * If the cell reference is invalid, the row and column of the return CellToken
-     * are both set to BADCELL (which should be a final int that equals -1).
-     * Also, return the index of the position in the string after processing
-     * the cell reference.
-     * (Possible improvement: instead of returning a CellToken with row and
-     * column equal to BADCELL, throw an exception that indicates a parsing error.)
-     * 
-     * A cell reference is defined to be a sequence of CAPITAL letters,
-     * followed by a sequence of digits (0-9).  The letters refer to
-     * columns as follows: A = 0, B = 1, C = 2, ..., Z = 25, AA = 26,
-     * AB = 27, ..., AZ = 51, BA = 52, ..., ZA = 676, ..., ZZ = 701,
-     * AAA = 702.  The digits represent the row number.
-     *
-     * @param inputString  the input string
-     * @param startIndex  the index of the first char to process
-     * @param cellToken  a cellToken (essentially a return value)
-     * @return  index corresponding to the position in the string just after the cell reference
+     * Pushes a precedent onto the pull stack if it is stale, unless it
+     * is already being pulled, which means it is on a cycle.
+     * @param theCell the precedent
+     * @param theStack the pull stack
+     * @param theExpanded ids of the cells being pulled
      */
-    private int getCellToken (String inputString, int startIndex, CellToken cellToken) {
-        char ch;
-        int column = 0;
-        int row = 0;
-        int index = startIndex;
-
-        // handle a bad startIndex
-        if ((startIndex < 0) || (startIndex >= inputString.length() )) {
-            cellToken.setColumn(BADCELL);
-            cellToken.setRow(BADCELL);
-            return index;
+    private static void pushStale(final Cell theCell, final Deque<Cell> theStack, 
+                                  final BitSet theExpanded) {
+        if (theCell.isStale() && !theExpanded.get(theCell.getId())) {
+            theStack.push(theCell);
         }
-
-        // get rid of leading whitespace characters
-        while (index < inputString.length() ) {
-            ch = inputString.charAt(index);            
-            if (!Character.isWhitespace(ch)) {
-                break;
+    }
+    
+    /**
+     * Pushes the stale cells inside a range onto the pull stack, found
+     * through the stale set or by scanning the range, whichever is smaller.
+     * @param theRange the range
+     * @param theStack the pull stack
+     * @param theExpanded ids of the cells being pulled
+     */
+    private void pushStaleInRange(final RangeIndex.Range theRange, final Deque<Cell> theStack,
+                                  final BitSet theExpanded) {
+        
+        final long area = (long) (theRange.myLastRow - theRange.myFirstRow + 1)
+                * (theRange.myLastColumn - theRange.myFirstColumn + 1);
+        
+        if (myStaleCount < area) {
+            for (int id = myStale.nextSetBit(0); id >= 0; id = myStale.nextSetBit(id + 1)) {
+                final Cell cell = cellById(id);
+                if (theRange.contains(cell.getRow(), cell.getColumn())) {
+                    pushStale(cell, theStack, theExpanded);
+                }
             }
-            index++;
+            return;
         }
-        if (index == inputString.length()) {
-            // reached the end of the string before finding a capital letter
-            cellToken.setColumn(BADCELL);
-            cellToken.setRow(BADCELL);
-            return index;
+        for (int col = theRange.myFirstColumn; col <= theRange.myLastColumn; col++) {
+            for (int row = theRange.myFirstRow; row <= theRange.myLastRow; row++) {
+                final Cell cell = spreadsheet.get(row, col);
+                if (cell != null) {
+                    pushStale(cell, theStack, theExpanded);
+                }
+            }
         }
-
-        // ASSERT: index now points to the first non-whitespace character
-
-        ch = inputString.charAt(index);            
-        // process CAPITAL alphabetic characters to calculate the column
-        if (!Character.isUpperCase(ch)) {
-            cellToken.setColumn(BADCELL);
-            cellToken.setRow(BADCELL);
-            return index;
-        } else {
-            column = ch - 'A';
-            index++;
+    }
+    
+    /**
+     * Marks cells stale, to be computed when they are read.
+     * @param theCells the cells, closed under dependents
+     */
+    private void markStale(final List<Cell> theCells) {
+        for (Cell c: theCells) {
+            if (!c.isStale()) {
+                c.markStale(this);
+                myStale.set(c.getId());
+                myStaleCount++;
+            }
         }
-
-        while (index < inputString.length() ) {
-            ch = inputString.charAt(index);            
-            if (Character.isUpperCase(ch)) {
-                column = ((column + 1) * 26) + (ch - 'A');
-                index++;
-            } else {
-                break;
+    }
+    
+    /**
+     * Starts maintaining the aggregates of a column, built from the 
+     * current values of its cells. They cover the rows up to the last
+     * formula of the column and grow as formulas are added below it,
+     * whatever the number of rows of the spreadsheet.
+     * @param theColumn the column
+     */
+    private void trackColumn(final int theColumn) {
+        
+        if (theColumn >= myAggregates.length) {
+            myAggregates = Arrays.copyOf(myAggregates, Math.max(theColumn + 1, 2 * myAggregates.length));
+        }
+        if (myAggregates[theColumn] != null) {
+            return;
+        }
+        
+        final List<Cell> cells = spreadsheet.column(theColumn);
+        int rows = 1;
+        for (Cell cell: cells) {
+            if (cell.hasExpTree()) {
+                rows = Math.max(rows, cell.getRow() + 1);
             }
         }
-        if (index == inputString.length() ) {
-            // reached the end of the string before fully parsing the cell reference
-            cellToken.setColumn(BADCELL);
-            cellToken.setRow(BADCELL);
-            return index;
+        
+        final ColumnAggregates column = new ColumnAggregates(rows);
+        for (Cell cell: cells) {
+            if (cell.hasExpTree()) {
+                column.update(cell.getRow(), true, cell.getValue());
+            }
         }
-
-        // ASSERT: We have processed leading whitespace and the
-        // capital letters of the cell reference
-
-        // read numeric characters to calculate the row
-        if (Character.isDigit(ch)) {
-            row = ch - '0';
-            index++;
-        } else {
-            cellToken.setColumn(BADCELL);
-            cellToken.setRow(BADCELL);
-            return index;
+        myAggregates[theColumn] = column;
+    }
+    
+    /**
+     * Fills myDependentIds with the ids of the cells whose formula refers
+     * to theCell, directly or through a range, and returns how many there 
+     * are. An id may appear more than once. The buffer is only valid until 
+     * the next call.
+     * @param theCell the cell
+     * @return int the number of ids in myDependentIds
+     */
+    private int dependentsOf(final Cell theCell) {
+        int count = 0;
+        
+        for (int id: theCell.adjacentIds()) {
+            if (id != IntSet.FREE) {
+                if (count == myDependentIds.length) {
+                    myDependentIds = Arrays.copyOf(myDependentIds, 2 * count);
+                }
+                myDependentIds[count++] = id;
+            }
         }
-
-        while (index < inputString.length() ) {
-            ch = inputString.charAt(index);            
-            if (Character.isDigit(ch)) {
-                row = (row * 10) + (ch - '0');
-                index++;
-            } else {
+        
+        for (RangeIndex.Range range: myRanges.column(theCell.getColumn())) {
+            if (range == null) {
                 break;
             }
+            if (range.contains(theCell.getRow(), theCell.getColumn())) {
+                if (count == myDependentIds.length) {
+                    myDependentIds = Arrays.copyOf(myDependentIds, 2 * count);
+                }
+                myDependentIds[count++] = range.myCellId;
+            }
         }
-
-        // successfully parsed a cell reference
-        cellToken.setColumn(column);
-        cellToken.setRow(row);
-        return index;
-    }  
-}
-
+        return count;
+    }
+    
+    /**
+     * Returns whether giving the cell at theTarget the precedents
+     * thePrecedents and theRanges would create a cycle, which is the case
+     * if one of them is or contains theTarget itself or a cell depending
+     * on it. Only the cells that depend on theTarget are searched, 
+     * nothing is changed.
+     * @param theTarget the address of the edited cell
+     * @param thePrecedents the addresses the new formula refers to
+     * @param theRanges the ranges the new formula refers to
+     * @return true if the edit would create a cycle
+     */
+    private boolean createsCycle(final long theTarget, final long[] thePrecedents,
+                                 final List<FunctionToken> theRanges) {
+        
+        final BitSet precedents = new BitSet();
+        
+        for (FunctionToken range: theRanges) {
+            if (inRange(range, CellAddress.row(theTarget), CellAddress.column(theTarget))) {
+                return true;
+            }
+        }
+        
+        for (long address: thePrecedents) {
+            if (address == theTarget) {
+                return true;
+            }
+            // an empty location has no dependents, so it cannot reach the target
+            final Cell c = peekCell(address);
+            if (c != null) {
+                precedents.set(c.getId());
+            }
+        }
+        
+        final Cell start = peekCell(theTarget);
+        if (start == null || (precedents.isEmpty() && theRanges.isEmpty())) {
+            return false;
+        }
+        
+        // depth first search through the cells depending on the target
+        final BitSet visited = new BitSet();
+        final Deque<Cell> stack = new ArrayDeque<Cell>();
+        visited.set(start.getId());
+        stack.push(start);
+        
+        while (!stack.isEmpty()) {
+            final int count = dependentsOf(stack.pop());
+            
+            for (int i = 0; i < count; i++) {
+                final int id = myDependentIds[i];
+                
+                if (visited.get(id)) {
+                    continue;
+                }
+                visited.set(id);
+                
+                final Cell adj = cellById(id);
+                if (precedents.get(id)) {
+                    return true;
+                }
+                for (FunctionToken range: theRanges) {
+                    if (inRange(range, adj.getRow(), adj.getColumn())) {
+                        return true;
+                    }
+                }
+                stack.push(adj);
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Returns whether the range of theRange contains a location.
+     * @param theRange the aggregate over a range
+     * @param theRow the row
+     * @param theColumn the column
+     * @return true if contained
+     */
+    private static boolean inRange(final FunctionToken theRange, final int theRow, final int theColumn) {
+        return theRow >= theRange.getStart().getRow() && theRow <= theRange.getEnd().getRow()
+                && theColumn >= theRange.getStart().getColumn() 
+                && theColumn <= theRange.getEnd().getColumn();
+    }
+    
+    /**
+     * Recalculates after theCell changed, incrementally or for the entire
+     * spreadsheet depending on the recalculation mode.
+     * @param theCell the edited cell
+     */
+    private void recalculate(final Cell theCell) {
+        
+        if (myLazyRecalc) {
+            // values are computed when they are read
+            markStale(dirtyFrom(Collections.singletonList(theCell)));
+        } else if (myIncrementalRecalc) {
+            // only the edited cell and its dependents can change
+            recalculateFrom(theCell);
+        } else {
+            // perform topological sorting on this spreadsheet
+            // to figure out which cell to evaluate first
+            topologicalSort(); 
+        }
+    }
     
     
-  
-
+    /**
+     * Performs a topological sort on the spreadsheet cells to determine 
+     * what order to evalute the Cells, and evaluates every cell. 
+     */
+    private void topologicalSort() {
+        
+        // empty locations have nothing to evaluate
+        evaluateInOrder(spreadsheet.values());
+    }
+    
+    /**
+     * Re-evaluates theStart and every cell that transitively depends on it,
+     * in dependency order. Cells outside of that subgraph keep their values.
+     * @param theStart the edited cell
+     */
+    private void recalculateFrom(final Cell theStart) {
+        evaluateInOrder(dirtyFrom(Collections.singletonList(theStart)));
+    }
+    
+    /**
+     * Returns the edited cells and every cell that transitively depends
+     * on one of them, each once.
+     * @param theEdited the edited cells
+     * @return List the dirty cells
+     */
+    private List<Cell> dirtyFrom(final List<Cell> theEdited) {
+        
+        final List<Cell> dirty = new ArrayList<Cell>();
+        final BitSet marked = new BitSet();
+        
+        // mark the edited cells and all of their transitive dependents dirty,
+        // dirty doubles as the breadth first search queue
+        for (Cell c: theEdited) {
+            if (!marked.get(c.getId())) {
+                marked.set(c.getId());
+                dirty.add(c);
+            }
+        }
+        for (int i = 0; i < dirty.size(); i++) {
+            final int count = dependentsOf(dirty.get(i));
+            
+            for (int j = 0; j < count; j++) {
+                final int id = myDependentIds[j];
+                
+                if (!marked.get(id)) {
+                    marked.set(id);
+                    dirty.add(cellById(id));
+                }
+            }
+        }
+        return dirty;
+    }
+    
+    /**
+     * Returns theDirty in an order where every cell comes after its
+     * precedents inside theDirty, by removing cells without a remaining
+     * precedent until none is left. Cells on a cycle are left out, any
+     * cycle through a dirty cell lies inside theDirty.
+     * @param theDirty the cells to order, closed under dependents
+     * @return List the ordered cells, fewer than theDirty if there is a cycle
+     */
+    private List<Cell> topologicalOrder(final Collection<Cell> theDirty) {
+        
+        final List<Cell> ordered = new ArrayList<Cell>(theDirty.size());
+        
+        for (Cell c: theDirty) {
+            c.setInDegreeSort(0);
+        }
+        for (Cell c: theDirty) {
+            final int count = dependentsOf(c);
+            
+            for (int i = 0; i < count; i++) {
+                final Cell adj = cellById(myDependentIds[i]);
+                adj.setInDegreeSort(adj.getInDegreeSort() + 1);
+            }
+        }
+        for (Cell c: theDirty) {
+            if (c.getInDegreeSort() == 0) {
+                ordered.add(c);
+            }
+        }
+        
+        // ordered doubles as the queue of cells without a remaining precedent
+        for (int j = 0; j < ordered.size(); j++) {
+            final int count = dependentsOf(ordered.get(j));
+            
+            for (int i = 0; i < count; i++) {
+                final Cell adj = cellById(myDependentIds[i]);
+                
+                adj.setInDegreeSort(adj.getInDegreeSort() - 1);
+                if (adj.getInDegreeSort() == 0) {
+                    ordered.add(adj);
+                }
+            }
+        }
+        
+        for (Cell c: theDirty) {
+            c.resetInDegreeSort();
+        }
+        return ordered;
+    }
+    
+    /**
+     * Gives a cell a new expression tree, or none for plain text, and 
+     * updates its dependencies without recalculating anything.
+     * @param theCell the cell
+     * @param theTree the compiled expression tree, null for plain text
+     * @param theFormula the formula or text kept by the cell
+     */
+    private void setCellTree(final Cell theCell, final ExpressionTree theTree, 
+                             final String theFormula) {
+        
+        if (theTree == null) {
+            setPrecedents(theCell, NO_ADDRESSES, new ArrayList<FunctionToken>());
+        } else {
+            setPrecedents(theCell, theTree.getCellAddresses(), theTree.getRangeReferences());
+        }
+        theCell.setExpressionTree(theTree);
+        theCell.setFormula(theFormula);
+        myPromoted.remove(theCell);
+    }
+    
+    /**
+     * Appends what theCell holds after an edit to the journal, if any,
+     * before the edit is recalculated so an edit that fails to evaluate
+     * is still recovered.
+     * @param theCell the edited cell
+     */
+    private void journal(final Cell theCell) {
+        if (myJournal != null) {
+            myJournal.append(theCell.hasExpTree() ? EditJournal.FORMULA : EditJournal.TEXT,
+                             theCell.getRow(), theCell.getColumn(), theCell.getFormula());
+        }
+    }
+    
+    /**
+     * Returns the address of a cell, e.g. B3.
+     * @param theCell the cell
+     * @return String the address
+     */
+    private static String label(final Cell theCell) {
+        return CellAddress.label(CellAddress.encode(theCell.getRow(), theCell.getColumn()));
+    }
+    
+    /**
+     * Returns whether theInput is an integer, an optional '-' followed by digits.
+     * @param theInput the input
+     * @return true if an integer
+     */
+    static boolean isInteger(final String theInput) {
+        
+        final int start = theInput.startsWith("-") ? 1 : 0;
+        
+        if (theInput.length() == start) {
+            return false;
+        }
+        for (int i = start; i < theInput.length(); i++) {
+            if (!Character.isDigit(theInput.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Evaluates the given cells in dependency order, one level at a time.
+     * A level holds every cell whose precedents inside theDirty have all
+     * been evaluated, so the cells of a level are independent of each other
+     * and large levels are evaluated in parallel. Precedents outside of 
+     * theDirty are treated as already evaluated.
+     * Fires a CYCLE property change if not every cell could be evaluated.
+     * @param theDirty the cells to evaluate, closed under dependents
+     */
+    private void evaluateInOrder(final Collection<Cell> theDirty) {
+        evaluateInOrder(theDirty, null);
+    }
+    
+    /**
+     * Evaluates the given cells in dependency order like 
+     * evaluateInOrder(Collection), reporting to theProgress after every
+     * level. Stopping after a level leaves the remaining cells unevaluated.
+     * @param theDirty the cells to evaluate, each once, closed under dependents
+     * @param theProgress told about every level, null for none
+     * @return List the cells left unevaluated by a stop or a cycle,
+     *         closed under dependents, empty if every cell was evaluated
+     */
+    List<Cell> evaluateInOrder(final Collection<Cell> theDirty, final Progress theProgress) {
+        
+        final RecalculationEvent event = new RecalculationEvent();
+        final long start = myMetrics.recalculationStarted(theDirty.size());
+        event.begin();
+        List<Cell> level = new ArrayList<Cell>();
+        int counter = 0;
+        int depth = 0;
+        boolean stopped = false;
+        
+        // in-degree counted only over edges inside the dirty subgraph,
+        // clean precedents already hold their final values
+        for (Cell c: theDirty) {
+            c.setInDegreeSort(0);
+        }
+        for (Cell c: theDirty) {
+            final int count = dependentsOf(c);
+            
+            for (int i = 0; i < count; i++) {
+                final Cell adj = cellById(myDependentIds[i]);
+                adj.setInDegreeSort(adj.getInDegreeSort() + 1);
+            }
+        }
+        
+        for (Cell c: theDirty) {
+            if (c.getInDegreeSort() == 0) {
+                level.add(c);
+            }
+        }
+        
+        while (!level.isEmpty()) {
+            
+            depth = Math.max(depth, level.size());
+            if (level.size() >= myParallelThreshold) {
+                ForkJoinPool.commonPool().invoke(
+                        new EvaluateTask(this, level, 0, level.size()));
+            } else {
+                for (Cell c: level) {
+                    c.evaluate(this);
+                }
+            }
+            counter += level.size();
+            
+            // decrement the adjacent cells in-degree, the ones
+            // reaching zero make up the next level
+            final List<Cell> next = new ArrayList<Cell>();
+            for (Cell vertex: level) {
+                final int count = dependentsOf(vertex);
+                
+                for (int i = 0; i < count; i++) {
+                    final Cell adj = cellById(myDependentIds[i]);
+                    
+                    adj.setInDegreeSort(adj.getInDegreeSort() - 1);
+                    
+                    if (adj.getInDegreeSort() == 0) {
+                        next.add(adj);
+                    }
+                }
+            }
+            final List<Cell> evaluated = level;
+            level = next;
+            
+            if (theProgress != null 
+                    && !theProgress.levelEvaluated(evaluated, counter, theDirty.size())) {
+                stopped = true;
+                break;
+            }
+        }
+        
+        // after a stop the next level and the cells it has not reached
+        // yet, which still have a precedent left, are unevaluated
+        final List<Cell> remaining = level;
+        for (Cell c: theDirty) {
+            if (c.getInDegreeSort() > 0) {
+                remaining.add(c);
+            }
+            c.resetInDegreeSort();
+        }
+        
+        myMetrics.recalculated(start, theDirty.size(), counter, depth);
+        event.end();
+        if (event.shouldCommit()) {
+            event.cells = theDirty.size();
+            event.cellsEvaluated = counter;
+            event.queueDepth = depth;
+            event.commit();
+        }
+        
+        if (!stopped && counter != theDirty.size()) {
+            myPcs.firePropertyChange(CYCLE, theDirty.size(), counter);
+        }
+        return remaining;
+    }
+    
+    /**
+     * Parses the cell reference or function over a range starting at 
+     * startIndex and pushes it onto operands as a leaf.
+     * @param formula the formula
+     * @param startIndex index of the first letter
+     * @param operands the parser's operand stack
+     * @return int the index just after the reference
+     * @throws FormulaParseException if the reference is invalid or out of bounds
+     */
+    private int parseReference(String formula, int startIndex, Deque<ExpressionTreeNode> operands) 
+            throws FormulaParseException {
+        
+        final FunctionToken functionToken = new FunctionToken();
+        int index = getFunctionToken(formula, startIndex, functionToken);
+        
+        if (index == BADCELL) {
+            throw new FormulaParseException("Invalid function", startIndex);
+        } else if (index != startIndex) {
+            if (!inBounds(functionToken.getStart()) || !inBounds(functionToken.getEnd())) {
+                throw new FormulaParseException("Range outside of the spreadsheet", startIndex);
+            }
+            operands.push(new ExpressionTreeNode(functionToken));
+            return index;
+        }
+        
+        final CellToken cellToken = new CellToken();
+        index = getCellToken(formula, startIndex, cellToken);
+        
+        if (cellToken.getRow() == BADCELL) {
+            throw new FormulaParseException("Invalid cell reference", startIndex);
+        } else if (!inBounds(cellToken)) {
+            throw new FormulaParseException("Cell outside of the spreadsheet", startIndex);
+        }
+        operands.push(new ExpressionTreeNode(cellToken));
+        return index;
+    }
+    
+    /**
+     * Pops the operands of operator off operands and pushes the node
+     * applying it. A sign gets no left operand, which evaluates as 0.
+     * @param operands the parser's operand stack
+     * @param operator the operator, a char plus UNARY for a sign
+     */
+    private static void reduce(Deque<ExpressionTreeNode> operands, int operator) {
+        
+        final ExpressionTreeNode right = operands.pop();
+        final ExpressionTreeNode left = (operator & UNARY) != 0 ? null : operands.pop();
+        
+        operands.push(new ExpressionTreeNode(new OperatorToken((char) (operator & ~UNARY)), 
+                                             left, right));
+    }
+    
+    /**
+     * Returns the priority of an operator on the parser's operator stack,
+     * signs come before every binary operator.
+     * @param operator the operator, a char plus UNARY for a sign
+     * @return int the priority
+     */
+    private static int parsePriority(int operator) {
+        if ((operator & UNARY) != 0) {
+            return OperatorToken.operatorPriority(OperatorToken.Mult) + 1;
+        }
+        return OperatorToken.operatorPriority((char) operator);
+    }
+    
+    /**
+     * Returns whether a location lies inside the largest spreadsheet, 
+     * referring to it grows the spreadsheet to contain it.
+     * @param cellToken the location
+     * @return true if in bounds
+     */
+    private boolean inBounds(CellToken cellToken) {
+        return cellToken.getRow() >= 0 && cellToken.getRow() < MAX_ROWS 
+                && cellToken.getColumn() >= 0 && cellToken.getColumn() < MAX_COLUMNS;
+    }
+    
+    /**
+     * Checks that a location lies inside the largest spreadsheet.
+     * @param row the row
+     * @param col the column
+     * @throws IndexOutOfBoundsException if it does not
+     */
+    private static void checkBounds(final int row, final int col) {
+        if (row < 0 || row >= MAX_ROWS || col < 0 || col >= MAX_COLUMNS) {
+            throw new IndexOutOfBoundsException("Cell out of bounds: row " + row 
+                                                + ", column " + col);
+        }
+    }
+    
+    /**
+     * Returns the cell with an id.
+     * @param theId the id
+     * @return Cell the cell
+     */
+    private Cell cellById(final int theId) {
+        return myCellsById[theId >>> ID_PAGE_BITS][theId & ((1 << ID_PAGE_BITS) - 1)];
+    }
+    
+    /**
+     * Stores a new cell under its id, allocating a page when the last one is full.
+     * @param theCell the cell
+     */
+    private void addCellById(final Cell theCell) {
+        final int page = theCell.getId() >>> ID_PAGE_BITS;
+        
+        if (page >= myCellsById.length) {
+            // only the directory of pages grows, pages stay where they are
+            myCellsById = Arrays.copyOf(myCellsById, Math.max(page + 1, 2 * myCellsById.length));
+        }
+        if (myCellsById[page] == null) {
+            myCellsById[page] = new Cell[1 << ID_PAGE_BITS];
+        }
+        myCellsById[page][theCell.getId() & ((1 << ID_PAGE_BITS) - 1)] = theCell;
+    }
+    
+    /**
+     * getFunctionToken
+     * 
+     * Assuming that the next chars in a String (at the given startIndex)
+     * start with letters, checks whether they are a function call
+     * over a range like SUM(A1:B5) or SUM(A1), and if so sets functionToken's
+     * function and range.
+     * 
+     * @param inputString  the input string
+     * @param startIndex  the index of the first char to process
+     * @param functionToken  a functionToken (essentially a return value)
+     * @return  index just after the closing parenthesis, startIndex if the 
+     *          letters are not followed by '(' (not a function call), or BADCELL
+     *          if the function or its range is invalid
+     */
+    private int getFunctionToken(String inputString, int startIndex, FunctionToken functionToken) {
+        int index = startIndex;
+        
+        while (index < inputString.length() && CellAddress.isColumnLetter(inputString.charAt(index))) {
+            index++;
+        }
+        if (index == inputString.length() || inputString.charAt(index) != OperatorToken.LeftParen) {
+            return startIndex;
+        }
+        
+        final int function = FunctionToken.functionOf(inputString, startIndex, index);
+        if (function < 0) {
+            return BADCELL;
+        }
+        
+        // the range, a single cell or two corners separated by ':'
+        final CellToken start = new CellToken();
+        final CellToken end = new CellToken();
+        index = getCellToken(inputString, index + 1, start);
+        if (start.getRow() == BADCELL) {
+            return BADCELL;
+        }
+        index = skipWhitespace(inputString, index);
+        if (index < inputString.length() && inputString.charAt(index) == ':') {
+            index = getCellToken(inputString, index + 1, end);
+            if (end.getRow() == BADCELL) {
+                return BADCELL;
+            }
+            index = skipWhitespace(inputString, index);
+        } else {
+            end.setRow(start.getRow());
+            end.setColumn(start.getColumn());
+        }
+        
+        if (index == inputString.length() || inputString.charAt(index) != ')') {
+            return BADCELL;
+        }
+        
+        functionToken.setFunction(function);
+        functionToken.setRange(start, end);
+        return index + 1;
+    }
+    
+    /**
+     * Returns the index of the first char at or after theIndex that
+     * is not whitespace.
+     * @param inputString the input string
+     * @param theIndex the index to start at
+     * @return int the index, the length of the string if there is none
+     */
+    private static int skipWhitespace(String inputString, int theIndex) {
+        int index = theIndex;
+        
+        while (index < inputString.length() && Character.isWhitespace(inputString.charAt(index))) {
+            index++;
+        }
+        return index;
+    }
+    
+    /**
+     * getCellToken
+     * 
+     * Assuming that the next chars in a String (at the given startIndex)
+     * is a cell reference, set cellToken's column and row to the
+     * cell's column and row.
+     * If the cell reference is invalid, the row and column of the return CellToken
+     * are both set to BADCELL (which should be a final int that equals -1).
+     * Also, return the index of the position in the string after processing
+     * the cell reference.
+     * (Possible improvement: instead of returning a CellToken with row and
+     * column equal to BADCELL, throw an exception that indicates a parsing error.)
+     * 
+     * A cell reference is defined to be a sequence of letters (either case),
+     * followed by a sequence of digits (0-9), as parsed by CellAddress.parse.
+     *
+     * @param inputString  the input string
+     * @param startIndex  the index of the first char to process
+     * @param cellToken  a cellToken (essentially a return value)
+     * @return  index corresponding to the position in the string just after the cell reference
+     */
+    private int getCellToken (String inputString, int startIndex, CellToken cellToken) {
+        
+        final long address = CellAddress.parse(inputString, startIndex);
+        
+        if (address == CellAddress.NONE) {
+            cellToken.setColumn(BADCELL);
+            cellToken.setRow(BADCELL);
+            return startIndex;
+        }
+        cellToken.setColumn(CellAddress.column(address));
+        cellToken.setRow(CellAddress.row(address));
+        return CellAddress.labelEnd(inputString, startIndex);
+    }  
+    
+    //////////////////////////////// INNER CLASSES //////////////////////////////////////
+    
+    /**
+     * Told about the progress of evaluateInOrder after every level.
+     */
+    interface Progress {
+        
+        /**
+         * Called after a dependency level has been evaluated.
+         * @param theLevel the cells of the level, only valid during the call
+         * @param theEvaluated the number of cells evaluated so far
+         * @param theTotal the number of cells to evaluate
+         * @return true to go on, false to stop
+         */
+        boolean levelEvaluated(List<Cell> theLevel, int theEvaluated, int theTotal);
+    }
+    
+    /**
+     * Fork/join task that evaluates a slice of one dependency level.
+     * The cells of a level do not depend on each other so the slice
+     * is split in halves until it is small enough to evaluate directly.
+     */
+    private static class EvaluateTask extends RecursiveAction {
+        
+        /**
+         * Generated ID.
+         */
+        private static final long serialVersionUID = -4283761093217742811L;
+        
+        /**
+         * The spreadsheet the cells belong to.
+         */
+        private final Spreadsheet mySheet;
+        
+        /**
+         * The cells of the level.
+         */
+        private final List<Cell> myLevel;
+        
+        /**
+         * First index of the slice, inclusive.
+         */
+        private final int myFrom;
+        
+        /**
+         * Last index of the slice, exclusive.
+         */
+        private final int myTo;
+        
+        /**
+         * Constructor.
+         * @param theSheet the spreadsheet
+         * @param theLevel the cells of the level
+         * @param theFrom first index, inclusive
+         * @param theTo last index, exclusive
+         */
+        EvaluateTask(final Spreadsheet theSheet, final List<Cell> theLevel,
+                     final int theFrom, final int theTo) {
+            mySheet = theSheet;
+            myLevel = theLevel;
+            myFrom = theFrom;
+            myTo = theTo;
+        }
+        
+        @Override
+        protected void compute() {
+            if (myTo - myFrom <= TASK_GRAIN) {
+                for (int i = myFrom; i < myTo; i++) {
+                    myLevel.get(i).evaluate(mySheet);
+                }
+            } else {
+                final int mid = (myFrom + myTo) >>> 1;
+                invokeAll(new EvaluateTask(mySheet, myLevel, myFrom, mid),
+                          new EvaluateTask(mySheet, myLevel, mid, myTo));
+            }
+        }
+    }
+    
+    /**
+     * A batch of edits applied by applyAll. Every edit changes its cell
+     * and dependencies right away without recalculating, and remembers
+     * what the cell held so the batch can be undone.
+     */
+    final class Batch {
+        
+        /**
+         * The edited cells, in order.
+         */
+        private final List<Cell> myEdited = new ArrayList<Cell>();
+        
+        /**
+         * The expression tree of each edited cell before its edit.
+         */
+        private final List<ExpressionTree> myOldTrees = new ArrayList<ExpressionTree>();
+        
+        /**
+         * The formula of each edited cell before its edit.
+         */
+        private final List<String> myOldFormulas = new ArrayList<String>();
+        
+        /**
+         * Returns the number of edits so far.
+         * @return int the number of edits
+         */
+        int size() {
+            return myEdited.size();
+        }
+        
+        /**
+         * Changes the cell at a location to an input, as typed into a cell.
+         * @param theLocation the location
+         * @param theInput "=" and a formula, an integer or plain text, 
+         *        null or empty to clear
+         * @throws FormulaParseException if the input does not parse, 
+         *         the cell is left as it was
+         * @throws IndexOutOfBoundsException if the location is outside 
+         *         of the spreadsheet
+         */
+        void set(final CellToken theLocation, final String theInput) throws FormulaParseException {
+            
+            final String input = theInput == null ? "" : theInput;
+            ExpressionTree expressionTree = null;
+            String formula = input;
+            
+            if (input.startsWith("=")) {
+                formula = input.substring(1).trim();
+                expressionTree = parseFormula(input.substring(1));
+            } else if (isInteger(input)) {
+                expressionTree = parseFormula(input);
+            }
+            
+            final Cell cell = getCell(theLocation);
+            
+            myEdited.add(cell);
+            myOldTrees.add(cell.getExpressionTree());
+            myOldFormulas.add(cell.getFormula());
+            setCellTree(cell, expressionTree, formula);
+        }
+        
+        /**
+         * Changes the cell at a location to plain text, even text that
+         * reads as a formula or an integer.
+         * @param theLocation the location
+         * @param theText the text, empty to clear
+         * @throws IndexOutOfBoundsException if the location is outside 
+         *         of the spreadsheet
+         */
+        void setText(final CellToken theLocation, final String theText) {
+            
+            final Cell cell = getCell(theLocation);
+            
+            myEdited.add(cell);
+            myOldTrees.add(cell.getExpressionTree());
+            myOldFormulas.add(cell.getFormula());
+            setCellTree(cell, null, theText);
+        }
+        
+        /**
+         * Undoes every edit of the batch, without recalculating.
+         */
+        void rollback() {
+            // in reverse, a location may have been edited twice
+            for (int i = myEdited.size() - 1; i >= 0; i--) {
+                setCellTree(myEdited.get(i), myOldTrees.get(i), myOldFormulas.get(i));
+            }
+            myEdited.clear();
+            myOldTrees.clear();
+            myOldFormulas.clear();
+        }
+        
+        /**
+         * Checks the batch for cycles once and recalculates once, or rolls
+         * it back if it creates a cycle. Fires a single BATCH or CYCLE
+         * property change with the edited locations.
+         * @return true if the batch was applied, false if it was rolled back
+         */
+        boolean commit() {
+            
+            final List<CellToken> locations = locations(new ArrayList<Cell>(myEdited));
+            final List<Cell> dirty = apply();
+            
+            if (dirty == null) {
+                return false;
+            }
+            if (myLazyRecalc) {
+                markStale(dirty);
+            } else if (myIncrementalRecalc) {
+                evaluateInOrder(dirty);
+            } else {
+                topologicalSort();
+            }
+            myPcs.firePropertyChange(BATCH, null, locations);
+            return true;
+        }
+        
+        /**
+         * Checks the batch for cycles once and keeps it without 
+         * recalculating, or rolls it back and fires a CYCLE property 
+         * change if it creates a cycle.
+         * @return List the edited cells and their dependents, which are 
+         *         left to be evaluated, or null if the batch was rolled back
+         */
+        List<Cell> apply() {
+            
+            final List<Cell> dirty = dirtyFrom(myEdited);
+            
+            if (topologicalOrder(dirty).size() != dirty.size()) {
+                final List<CellToken> locations = locations(new ArrayList<Cell>(myEdited));
+                rollback();
+                myMetrics.cycleRejected();
+                myPcs.firePropertyChange(CYCLE, null, locations);
+                return null;
+            }
+            for (Cell c: myEdited) {
+                journal(c);
+            }
+            myEdited.clear();
+            myOldTrees.clear();
+            myOldFormulas.clear();
+            return dirty;
+        }
+        
+        /**
+         * Returns a read only view of the locations of cells, without
+         * copying them into CellTokens up front.
+         * @param theCells the cells
+         * @return List the locations
+         */
+        private List<CellToken> locations(final List<Cell> theCells) {
+            return new AbstractList<CellToken>() {
+                @Override
+                public CellToken get(final int theIndex) {
+                    final Cell cell = theCells.get(theIndex);
+                    return new CellToken(cell.getRow(), cell.getColumn());
+                }
+                
+                @Override
+                public int size() {
+                    return theCells.size();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package spreadsheet;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+
+/**
+ * Streaming CSV import and export of a Spreadsheet.
+ *
+ * Row r, field c of a file is the cell at row r, column c. A field holds
+ * what a user types into a cell: "=" followed by a formula, an integer,
+ * or plain text. Fields follow RFC 4180, a field containing a comma, a
+ * quote or a line break is quoted and its quotes are doubled.
+ *
+ * Reading goes through a fixed size buffer and applies every cell as
+ * one batch of the spreadsheet, so dependencies are built in bulk and
+ * the sheet is recalculated once at the end. Writing streams one cell at
+ * a time, only the occupied cells are visited.
+ *
+ * @author Dmitriy Onishchenko
+ * @version 26 February 2016
+ */
+public final class SpreadsheetCsv {
+
+    /**
+     * Number of chars read or written at a time.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Field separator.
+     */
+    private static final char SEPARATOR = ',';
+
+    /**
+     * Quote around a field.
+     */
+    private static final char QUOTE = '"';
+
+    /**
+     * Orders cells by row, then by column.
+     */
+    private static final Comparator<Cell> ROW_ORDER = new Comparator<Cell>() {
+        @Override
+        public int compare(final Cell theFirst, final Cell theSecond) {
+            if (theFirst.getRow() != theSecond.getRow()) {
+                return Integer.compare(theFirst.getRow(), theSecond.getRow());
+            }
+            return Integer.compare(theFirst.getColumn(), theSecond.getColumn());
+        }
+    };
+
+
+    /**
+     * Not instantiable.
+     */
+    private SpreadsheetCsv() {
+        // static methods only
+    }
+
+
+    /**
+     * Reads a UTF-8 CSV file into theSheet, see read(Spreadsheet, Reader).
+     * @param theSheet the spreadsheet
+     * @param theFile the file
+     * @return true if the cells were applied, false if they were rejected
+     *         because they would create a cycle
+     * @throws IOException if the file cannot be read or is not valid
+     */
+    public static boolean read(final Spreadsheet theSheet, final Path theFile) throws IOException {
+        try (Reader reader = open(theFile)) {
+            return read(theSheet, reader);
+        }
+    }
+
+    /**
+     * Reads CSV into theSheet. Cells of empty fields keep what they held,
+     * clear the spreadsheet first to replace its content.
+     * Nothing changes unless the whole input is valid and creates no cycle.
+     * @param theSheet the spreadsheet
+     * @param theReader the CSV, read to its end but not closed
+     * @return true if the cells were applied, false if they were rejected
+     *         because they would create a cycle
+     * @throws IOException if reading fails, a formula does not parse or
+     *         a field lies outside of the spreadsheet
+     */
+    public static boolean read(final Spreadsheet theSheet, final Reader theReader) throws IOException {
+
+        final Spreadsheet.Batch batch = theSheet.new Batch();
+        try {
+            read(batch, theReader);
+        } catch (final IOException | RuntimeException e) {
+            batch.rollback();
+            throw e;
+        }
+        return batch.commit();
+    }
+
+    /**
+     * Reads a UTF-8 CSV file into a batch, see read(Batch, Reader).
+     * @param theBatch the batch
+     * @param theFile the file
+     * @throws IOException if the file cannot be read or is not valid
+     */
+    static void read(final Spreadsheet.Batch theBatch, final Path theFile) throws IOException {
+        try (Reader reader = open(theFile)) {
+            read(theBatch, reader);
+        }
+    }
+
+    /**
+     * Reads CSV into a batch, which is neither applied nor rolled back,
+     * e.g. so that the RecalculationEngine recalculates it.
+     * @param theBatch the batch
+     * @param theReader the CSV, read to its end but not closed
+     * @throws IOException if reading fails, a formula does not parse or
+     *         a field lies outside of the spreadsheet
+     */
+    static void read(final Spreadsheet.Batch theBatch, final Reader theReader) throws IOException {
+
+        final CellToken location = new CellToken();
+        final StringBuilder field = new StringBuilder();
+        final char[] buffer = new char[BUFFER_SIZE];
+
+        boolean quoted = false;      // inside a quoted field
+        boolean quoteSeen = false;   // last char was a quote inside a quoted field
+        boolean afterCR = false;     // last char was a '\r' ending a row
+        int row = 0;
+        int col = 0;
+
+        int length;
+        while ((length = theReader.read(buffer)) != -1) {
+            for (int i = 0; i < length; i++) {
+                final char ch = buffer[i];
+
+                if (afterCR) {
+                    afterCR = false;
+                    if (ch == '\n') {
+                        continue;
+                    }
+                }
+
+                if (quoted) {
+                    if (quoteSeen) {
+                        quoteSeen = false;
+                        if (ch == QUOTE) {
+                            field.append(QUOTE);
+                            continue;
+                        }
+                        // the quote closed the field, ch is handled below
+                        quoted = false;
+                    } else {
+                        if (ch == QUOTE) {
+                            quoteSeen = true;
+                        } else {
+                            field.append(ch);
+                        }
+                        continue;
+                    }
+                }
+
+                if (ch == SEPARATOR) {
+                    setField(theBatch, location, row, col++, field);
+                } else if (ch == '\n' || ch == '\r') {
+                    setField(theBatch, location, row++, col, field);
+                    col = 0;
+                    afterCR = ch == '\r';
+                } else if (ch == QUOTE && field.length() == 0) {
+                    quoted = true;
+                } else {
+                    field.append(ch);
+                }
+            }
+        }
+
+        if (quoted && !quoteSeen) {
+            throw new IOException("Unterminated quote in row " + row);
+        }
+        setField(theBatch, location, row, col, field);
+    }
+
+    /**
+     * Writes theSheet as a UTF-8 CSV file, see write(Spreadsheet, Writer, boolean).
+     * @param theSheet the spreadsheet
+     * @param theFile the file, replaced if it exists
+     * @param theFormulas true to write formulas, false to write values
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(final Spreadsheet theSheet, final Path theFile,
+                             final boolean theFormulas) throws IOException {
+        try (Writer writer = new BufferedWriter(
+                Channels.newWriter(FileChannel.open(theFile, StandardOpenOption.CREATE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING,
+                                                    StandardOpenOption.WRITE),
+                                   StandardCharsets.UTF_8.newEncoder(), -1),
+                BUFFER_SIZE)) {
+            write(theSheet, writer, theFormulas);
+        }
+    }
+
+    /**
+     * Writes theSheet as CSV, up to its last occupied row. Rows end after
+     * their last occupied column. Formulas are written as "=" and the
+     * formula, so that reading the file back gives the same spreadsheet,
+     * values are written as computed. Text is written as is either way.
+     * @param theSheet the spreadsheet
+     * @param theWriter where to write, flushed but not closed
+     * @param theFormulas true to write formulas, false to write values
+     * @throws IOException if writing fails
+     */
+    public static void write(final Spreadsheet theSheet, final Writer theWriter,
+                             final boolean theFormulas) throws IOException {
+
+        final List<Cell> occupied = theSheet.occupiedCells();
+        final Cell[] cells = occupied.toArray(new Cell[occupied.size()]);
+        Arrays.sort(cells, ROW_ORDER);
+
+        int row = 0;
+        int col = 0;
+        boolean written = false;
+
+        for (Cell cell: cells) {
+            if (cell.getFormula().isEmpty()) {
+                continue;
+            }
+            written = true;
+            for (; row < cell.getRow(); row++) {
+                theWriter.write('\n');
+                col = 0;
+            }
+            for (; col < cell.getColumn(); col++) {
+                theWriter.write(SEPARATOR);
+            }
+
+            if (!cell.hasExpTree()) {
+                writeField(theWriter, cell.getFormula());
+            } else if (!theFormulas) {
+                theWriter.write(Integer.toString(cell.getValue()));
+            } else if (Spreadsheet.isInteger(cell.getFormula())) {
+                theWriter.write(cell.getFormula());
+            } else {
+                writeField(theWriter, "=" + cell.getFormula());
+            }
+        }
+        if (written) {
+            theWriter.write('\n');
+        }
+        theWriter.flush();
+    }
+
+
+    /////////////////////////// PRIVATE HELPER METHODS //////////////////////////////////////
+
+
+    /**
+     * Opens a UTF-8 file for reading.
+     * @param theFile the file
+     * @return Reader the reader
+     * @throws IOException if the file cannot be opened
+     */
+    private static Reader open(final Path theFile) throws IOException {
+        return Channels.newReader(FileChannel.open(theFile, StandardOpenOption.READ),
+                                  StandardCharsets.UTF_8.newDecoder(), -1);
+    }
+
+    /**
+     * Adds a non empty field to the batch and empties it.
+     * @param theBatch the batch
+     * @param theLocation reused location
+     * @param theRow the row of the field
+     * @param theColumn the column of the field
+     * @param theField the field
+     * @throws IOException if the field does not parse or is out of bounds
+     */
+    private static void setField(final Spreadsheet.Batch theBatch, final CellToken theLocation,
+                                 final int theRow, final int theColumn,
+                                 final StringBuilder theField) throws IOException {
+        if (theField.length() == 0) {
+            return;
+        }
+        theLocation.setRow(theRow);
+        theLocation.setColumn(theColumn);
+
+        try {
+            theBatch.set(theLocation, theField.toString());
+        } catch (final FormulaParseException e) {
+            throw new IOException(CellToken.printCellToken(theLocation) + ": " + e.getMessage(), e);
+        } catch (final IndexOutOfBoundsException e) {
+            throw new IOException(CellToken.printCellToken(theLocation)
+                                  + " is outside of the spreadsheet", e);
+        }
+        theField.setLength(0);
+    }
+
+    /**
+     * Writes a field, quoted if it contains a separator, a quote or
+     * a line break.
+     * @param theWriter where to write
+     * @param theField the field
+     * @throws IOException if writing fails
+     */
+    private static void writeField(final Writer theWriter, final String theField) throws IOException {
+
+        boolean quote = false;
+        for (int i = 0; i < theField.length() && !quote; i++) {
+            final char ch = theField.charAt(i);
+            quote = ch == SEPARATOR || ch == QUOTE || ch == '\n' || ch == '\r';
+        }
+
+        if (!quote) {
+            theWriter.write(theField);
+            return;
+        }
+        theWriter.write(QUOTE);
+        for (int i = 0; i < theField.length(); i++) {
+            final char ch = theField.charAt(i);
+            if (ch == QUOTE) {
+                theWriter.write(QUOTE);
+            }
+            theWriter.write(ch);
+        }
+        theWriter.write(QUOTE);
+    }
+}
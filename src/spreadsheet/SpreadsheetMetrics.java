@@ -0,0 +1,358 @@
+package spreadsheet;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+
+/**
+ * Recalculation statistics of a Spreadsheet, published as a JMX MBean
+ * once registered, see register.
+ *
+ * Counters are striped LongAdders, so recording costs a few 
+ * nanoseconds without contention even when recalculation runs on 
+ * several threads, and the metrics can stay on in production. Counters
+ * are read as the sum of their stripes, a read racing with an update 
+ * may see part of a recalculation.
+ *
+ * Reading the clock costs about as much as parsing a short formula, so
+ * durations are sampled: every recalculation of at least TIMED_CELLS
+ * cells is timed, and one in SAMPLE_INTERVAL smaller recalculations,
+ * counted SAMPLE_INTERVAL times. Parses are only recorded one in 
+ * SAMPLE_INTERVAL, each counted SAMPLE_INTERVAL times, so an unsampled
+ * parse costs an increment. Parse statistics and the latency histogram
+ * are estimates, the other counts are exact.
+ *
+ * @author Dmitriy Onishchenko
+ * @version 26 February 2016
+ */
+public final class SpreadsheetMetrics implements SpreadsheetMetricsMBean {
+
+    /**
+     * Domain of the object names of registered metrics.
+     */
+    public static final String DOMAIN = "spreadsheet";
+
+    /**
+     * Number of latency buckets, bucket i holds latencies below 2^i
+     * microseconds and the last one everything slower, about 4 seconds
+     * and up.
+     */
+    private static final int BUCKETS = 23;
+
+    /**
+     * One in this many parses and small recalculations is timed, a power of two.
+     */
+    static final int SAMPLE_INTERVAL = 64;
+
+    /**
+     * Number of cells from which every recalculation is timed.
+     */
+    static final int TIMED_CELLS = 256;
+
+    /**
+     * Start time of an operation that is not timed.
+     */
+    static final long NOT_TIMED = Long.MIN_VALUE;
+
+    /**
+     * Keeps the larger of two values.
+     */
+    private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+        @Override
+        public long applyAsLong(final long theLeft, final long theRight) {
+            return Math.max(theLeft, theRight);
+        }
+    };
+
+    /**
+     * The spreadsheet.
+     */
+    private final Spreadsheet mySheet;
+
+    /**
+     * Number of recalculations.
+     */
+    private final LongAdder myRecalculations;
+
+    /**
+     * Number of cells evaluated.
+     */
+    private final LongAdder myCellsEvaluated;
+
+    /**
+     * Number of recalculations per latency bucket.
+     */
+    private final LongAdder[] myLatencies;
+
+    /**
+     * Number of formulas parsed.
+     */
+    private final LongAdder myParses;
+
+    /**
+     * Nanoseconds spent parsing.
+     */
+    private final LongAdder myParseNanos;
+
+    /**
+     * Largest number of cells queued at once.
+     */
+    private final LongAccumulator myMaxQueueDepth;
+
+    /**
+     * Number of edits rejected for creating a cycle.
+     */
+    private final LongAdder myCycleRejections;
+
+    /**
+     * Number of dependency edges.
+     */
+    private final LongAdder myEdges;
+
+    /**
+     * The name registered under, null if not registered.
+     */
+    private ObjectName myName;
+
+    /**
+     * Small recalculations started, picks the sampled ones. Updated 
+     * without synchronization, a lost update only shifts the sample.
+     */
+    private int myRecalculationTicks;
+
+    /**
+     * Parses started, picks the sampled ones, like myRecalculationTicks.
+     */
+    private int myParseTicks;
+
+
+    /**
+     * Creates the metrics of theSheet.
+     * @param theSheet the spreadsheet
+     */
+    SpreadsheetMetrics(final Spreadsheet theSheet) {
+
+        mySheet = theSheet;
+        myRecalculations = new LongAdder();
+        myCellsEvaluated = new LongAdder();
+        myLatencies = new LongAdder[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            myLatencies[i] = new LongAdder();
+        }
+        myParses = new LongAdder();
+        myParseNanos = new LongAdder();
+        myMaxQueueDepth = new LongAccumulator(MAX, 0);
+        myCycleRejections = new LongAdder();
+        myEdges = new LongAdder();
+    }
+
+
+    /**
+     * Registers these metrics with the platform MBean server, under the
+     * name spreadsheet:type=Spreadsheet,name=theName.
+     * @param theName the name of the spreadsheet, e.g. its file name
+     * @throws JMException if the name is invalid or already registered
+     */
+    public synchronized void register(final String theName) throws JMException {
+
+        if (myName != null) {
+            throw new IllegalStateException("Already registered as " + myName);
+        }
+        final ObjectName name = new ObjectName(DOMAIN + ":type=Spreadsheet,name="
+                                               + ObjectName.quote(theName));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        myName = name;
+    }
+
+    /**
+     * Removes these metrics from the platform MBean server, if registered.
+     * @throws JMException if they cannot be removed
+     */
+    public synchronized void unregister() throws JMException {
+
+        if (myName == null) {
+            return;
+        }
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(myName)) {
+            server.unregisterMBean(myName);
+        }
+        myName = null;
+    }
+
+    @Override
+    public long getRecalculationCount() {
+        return myRecalculations.sum();
+    }
+
+    @Override
+    public long getCellsEvaluated() {
+        return myCellsEvaluated.sum();
+    }
+
+    @Override
+    public double getAverageCellsPerRecalculation() {
+        final long recalculations = myRecalculations.sum();
+        return recalculations == 0 ? 0 : (double) myCellsEvaluated.sum() / recalculations;
+    }
+
+    @Override
+    public long[] getRecalculationLatencyHistogram() {
+        final long[] histogram = new long[BUCKETS];
+
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram[i] = myLatencies[i].sum();
+        }
+        return histogram;
+    }
+
+    @Override
+    public long[] getLatencyBucketLimits() {
+        final long[] limits = new long[BUCKETS];
+
+        for (int i = 0; i < BUCKETS - 1; i++) {
+            limits[i] = 1L << i;
+        }
+        limits[BUCKETS - 1] = Long.MAX_VALUE;
+        return limits;
+    }
+
+    @Override
+    public long getParseCount() {
+        return myParses.sum();
+    }
+
+    @Override
+    public long getParseNanos() {
+        return myParseNanos.sum();
+    }
+
+    @Override
+    public double getAverageParseMicros() {
+        final long parses = myParses.sum();
+        return parses == 0 ? 0 : myParseNanos.sum() / 1000.0 / parses;
+    }
+
+    @Override
+    public long getMaxQueueDepth() {
+        return myMaxQueueDepth.get();
+    }
+
+    @Override
+    public long getCycleRejectionCount() {
+        return myCycleRejections.sum();
+    }
+
+    @Override
+    public long getDependencyEdgeCount() {
+        return myEdges.sum();
+    }
+
+    @Override
+    public int getPopulatedCellCount() {
+        return mySheet.getNumOccupiedCells();
+    }
+
+    @Override
+    public void reset() {
+        myRecalculations.reset();
+        myCellsEvaluated.reset();
+        for (LongAdder bucket: myLatencies) {
+            bucket.reset();
+        }
+        myParses.reset();
+        myParseNanos.reset();
+        myMaxQueueDepth.reset();
+        myCycleRejections.reset();
+    }
+
+
+    /////////////////////////// PACKAGE METHODS //////////////////////////////////////
+
+
+    /**
+     * Called before a recalculation, returns its start time if it is timed.
+     * @param theCells the number of cells to evaluate
+     * @return long the start time in nanoseconds, or NOT_TIMED
+     */
+    long recalculationStarted(final int theCells) {
+        if (theCells >= TIMED_CELLS) {
+            return System.nanoTime();
+        }
+        return (++myRecalculationTicks & (SAMPLE_INTERVAL - 1)) == 0 ? System.nanoTime() 
+                                                                     : NOT_TIMED;
+    }
+
+    /**
+     * Records a recalculation.
+     * @param theStart what recalculationStarted returned
+     * @param theCells the number of cells to evaluate, as given to recalculationStarted
+     * @param theEvaluated the number of cells evaluated
+     * @param theQueueDepth the largest number of cells queued at once
+     */
+    void recalculated(final long theStart, final int theCells, final int theEvaluated,
+                      final int theQueueDepth) {
+
+        myRecalculations.increment();
+        myCellsEvaluated.add(theEvaluated);
+        myMaxQueueDepth.accumulate(theQueueDepth);
+
+        if (theStart != NOT_TIMED) {
+            final long micros = (System.nanoTime() - theStart) / 1000;
+            final int bucket = 64 - Long.numberOfLeadingZeros(micros);
+
+            myLatencies[Math.min(bucket, BUCKETS - 1)].add(theCells >= TIMED_CELLS ? 1 
+                                                           : SAMPLE_INTERVAL);
+        }
+    }
+
+    /**
+     * Called before a formula is parsed, returns its start time if it is timed.
+     * @return long the start time in nanoseconds, or NOT_TIMED
+     */
+    long parseStarted() {
+        return (++myParseTicks & (SAMPLE_INTERVAL - 1)) == 0 ? System.nanoTime() : NOT_TIMED;
+    }
+
+    /**
+     * Records a formula parse, if it is timed.
+     * @param theStart what parseStarted returned
+     */
+    void parsed(final long theStart) {
+        if (theStart != NOT_TIMED) {
+            myParses.add(SAMPLE_INTERVAL);
+            myParseNanos.add(SAMPLE_INTERVAL * (System.nanoTime() - theStart));
+        }
+    }
+
+    /**
+     * Records an edit rejected for creating a cycle.
+     */
+    void cycleRejected() {
+        myCycleRejections.increment();
+    }
+
+    /**
+     * Records dependency edges added, or removed if negative.
+     * @param theDelta the change in the number of edges
+     */
+    void edgesChanged(final long theDelta) {
+        myEdges.add(theDelta);
+    }
+
+    /**
+     * Records that the spreadsheet now has a number of dependency edges,
+     * after it was cleared or loaded.
+     * @param theEdges the number of edges
+     */
+    void edgesReset(final long theEdges) {
+        myEdges.reset();
+        myEdges.add(theEdges);
+    }
+}
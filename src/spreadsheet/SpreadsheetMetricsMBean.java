@@ -0,0 +1,96 @@
+package spreadsheet;
+
+
+/**
+ * Management interface of SpreadsheetMetrics, the recalculation
+ * statistics a Spreadsheet publishes through JMX.
+ *
+ * @author Dmitriy Onishchenko
+ * @version 26 February 2016
+ */
+public interface SpreadsheetMetricsMBean {
+
+    /**
+     * Returns the number of recalculations, every evaluation of a set of
+     * dirty cells and every pull of a stale cell counts as one.
+     * @return long number of recalculations
+     */
+    long getRecalculationCount();
+
+    /**
+     * Returns the number of cells evaluated by all recalculations.
+     * @return long number of cells evaluated
+     */
+    long getCellsEvaluated();
+
+    /**
+     * Returns the average number of cells evaluated per recalculation.
+     * @return double cells per recalculation, 0 if there was none
+     */
+    double getAverageCellsPerRecalculation();
+
+    /**
+     * Returns the number of recalculations per latency bucket, see
+     * getLatencyBucketLimits, estimated from sampled recalculations.
+     * @return long[] count of each bucket
+     */
+    long[] getRecalculationLatencyHistogram();
+
+    /**
+     * Returns the exclusive upper limit of each latency bucket in
+     * microseconds, the last bucket holds everything slower.
+     * @return long[] limit of each bucket, Long.MAX_VALUE for the last
+     */
+    long[] getLatencyBucketLimits();
+
+    /**
+     * Returns the number of formulas parsed, estimated from sampled parses.
+     * @return long number of formulas parsed
+     */
+    long getParseCount();
+
+    /**
+     * Returns the time spent parsing formulas, estimated from sampled parses.
+     * @return long nanoseconds spent parsing
+     */
+    long getParseNanos();
+
+    /**
+     * Returns the average time spent parsing a formula.
+     * @return double microseconds per formula, 0 if there was none
+     */
+    double getAverageParseMicros();
+
+    /**
+     * Returns the largest number of cells queued for evaluation at once
+     * during a topological sort, the widest dependency level.
+     * @return long maximum queue depth
+     */
+    long getMaxQueueDepth();
+
+    /**
+     * Returns the number of edits rejected because they would have
+     * created a cycle.
+     * @return long number of rejected edits
+     */
+    long getCycleRejectionCount();
+
+    /**
+     * Returns the number of dependency edges, one per cell reference
+     * and one per range a formula refers to.
+     * @return long number of dependency edges
+     */
+    long getDependencyEdgeCount();
+
+    /**
+     * Returns the number of populated cells.
+     * @return int number of populated cells
+     */
+    int getPopulatedCellCount();
+
+    /**
+     * Resets every counter and the histogram. The dependency edge and
+     * populated cell counts describe the spreadsheet and are kept.
+     */
+    void reset();
+}
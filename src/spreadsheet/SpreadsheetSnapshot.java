@@ -0,0 +1,578 @@
+package spreadsheet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Binary snapshot of a Spreadsheet, loaded by memory mapping the file.
+ *
+ * A snapshot holds everything a loaded sheet needs without parsing a
+ * formula or rebuilding a dependency edge: a table of the occupied cells
+ * with their locations and cached values, the compiled instructions and
+ * text of every formula, the dependency edges of both directions in
+ * compressed sparse row layout and the ranges formulas refer to.
+ *
+ * The cells are stored in the last topological order of the sheet, so
+ * the id of a loaded cell, its index in the snapshot, is also its place
+ * in evaluation order. Loading creates every cell with its value right
+ * away, formulas and edges are decoded from the mapped file when a cell
+ * is first used. The file must not change while a sheet loaded from it
+ * is in use, and a snapshot is limited to 2 GB.
+ *
+ * Layout, all ints big-endian:
+ * <pre>
+ * header      MAGIC, VERSION, rows, columns, cells, ranges,
+ *             code words, precedent edges, dependent edges, formula chars
+ * cells       row, column, value, flags per cell
+ * code        cells + 1 offsets, then the instructions
+ * precedents  cells + 1 offsets, then the cell ids
+ * dependents  cells + 1 offsets, then the cell ids
+ * ranges      cell id, function, first row, first column,
+ *             last row, last column per range
+ * formulas    cells + 1 offsets, then the chars of the formulas
+ * </pre>
+ *
+ * @author Dmitriy Onishchenko
+ * @version 26 February 2016
+ */
+public final class SpreadsheetSnapshot {
+
+    /**
+     * First int of every snapshot.
+     */
+    private static final int MAGIC = 0x53505348;
+
+    /**
+     * Version of the layout.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Number of ints in the header.
+     */
+    private static final int HEADER_INTS = 10;
+
+    /**
+     * Number of ints per cell in the cell table.
+     */
+    private static final int CELL_INTS = 4;
+
+    /**
+     * Number of ints per range.
+     */
+    private static final int RANGE_INTS = 6;
+
+    /**
+     * Flag of a cell holding a formula.
+     */
+    private static final int FORMULA = 1;
+
+    /**
+     * Number of bytes written at a time.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * The mapped file, only read with absolute gets so that cells
+     * can be decoded from several threads.
+     */
+    private final ByteBuffer myBuffer;
+
+    /**
+     * The number of rows of the spreadsheet.
+     */
+    private final int myNumRows;
+
+    /**
+     * The number of columns of the spreadsheet.
+     */
+    private final int myNumColumns;
+
+    /**
+     * The number of cells.
+     */
+    private final int myNumCells;
+
+    /**
+     * The number of ranges.
+     */
+    private final int myNumRanges;
+
+    /**
+     * Byte position of the cell table.
+     */
+    private final int myCells;
+
+    /**
+     * Byte position of the code offsets, the code follows them.
+     */
+    private final int myCode;
+
+    /**
+     * Byte position of the precedent offsets, the ids follow them.
+     */
+    private final int myPrecedents;
+
+    /**
+     * Byte position of the dependent offsets, the ids follow them.
+     */
+    private final int myDependents;
+
+    /**
+     * Byte position of the ranges.
+     */
+    private final int myRanges;
+
+    /**
+     * Byte position of the formula offsets, the chars follow them.
+     */
+    private final int myFormulas;
+
+    /**
+     * Number of dependency edges between cells.
+     */
+    private final int myNumEdges;
+
+
+    /**
+     * Reads the header of a mapped snapshot and checks its size.
+     * @param theBuffer the mapped file
+     * @throws IOException if the file is not a snapshot
+     */
+    private SpreadsheetSnapshot(final ByteBuffer theBuffer) throws IOException {
+
+        if (theBuffer.limit() < 4 * HEADER_INTS || theBuffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a spreadsheet snapshot");
+        }
+        if (theBuffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported snapshot version " + theBuffer.getInt(4));
+        }
+
+        myBuffer = theBuffer;
+        myNumRows = theBuffer.getInt(8);
+        myNumColumns = theBuffer.getInt(12);
+        myNumCells = theBuffer.getInt(16);
+        myNumRanges = theBuffer.getInt(20);
+
+        final long codeWords = theBuffer.getInt(24);
+        final long precedentEdges = theBuffer.getInt(28);
+        final long dependentEdges = theBuffer.getInt(32);
+        final long formulaChars = theBuffer.getInt(36);
+
+        if (myNumCells < 0 || myNumRanges < 0 || codeWords < 0 || precedentEdges < 0
+                || dependentEdges < 0 || formulaChars < 0) {
+            throw new IOException("Corrupt snapshot header");
+        }
+
+        // positions are computed in longs so a corrupt header cannot overflow them
+        final long cells = 4L * HEADER_INTS;
+        final long code = cells + 4L * CELL_INTS * myNumCells;
+        final long precedents = code + 4L * (myNumCells + 1 + codeWords);
+        final long dependents = precedents + 4L * (myNumCells + 1 + precedentEdges);
+        final long ranges = dependents + 4L * (myNumCells + 1 + dependentEdges);
+        final long formulas = ranges + 4L * RANGE_INTS * myNumRanges;
+        final long end = formulas + 4L * (myNumCells + 1) + 2L * formulaChars;
+
+        if (end != theBuffer.limit()) {
+            throw new IOException("Truncated or corrupt snapshot");
+        }
+        myCells = (int) cells;
+        myCode = (int) code;
+        myPrecedents = (int) precedents;
+        myDependents = (int) dependents;
+        myRanges = (int) ranges;
+        myFormulas = (int) formulas;
+        myNumEdges = (int) precedentEdges;
+    }
+
+
+    /**
+     * Replaces the content of theSheet with a snapshot file. Only the
+     * cell table is read up front, see the class comment.
+     * @param theSheet the spreadsheet
+     * @param theFile the snapshot
+     * @throws IOException if the file cannot be mapped or is not a snapshot
+     */
+    public static void read(final Spreadsheet theSheet, final Path theFile) throws IOException {
+
+        final ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(theFile, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot too large to map");
+            }
+            // the mapping stays valid once the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        theSheet.load(new SpreadsheetSnapshot(buffer));
+    }
+
+    /**
+     * Writes a snapshot of theSheet.
+     * @param theSheet the spreadsheet
+     * @param theFile the file, replaced if it exists
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(final Spreadsheet theSheet, final Path theFile) throws IOException {
+
+        final List<Cell> cells = snapshotOrder(theSheet);
+        final int numCells = cells.size();
+
+        // cells get their index in the snapshot as id
+        int maxId = -1;
+        for (Cell cell: cells) {
+            maxId = Math.max(maxId, cell.getId());
+        }
+        final int[] ids = new int[maxId + 1];
+        for (int i = 0; i < numCells; i++) {
+            ids[cells.get(i).getId()] = i;
+        }
+
+        long codeWords = 0;
+        long precedentEdges = 0;
+        long dependentEdges = 0;
+        long formulaChars = 0;
+        int numRanges = 0;
+        for (Cell cell: cells) {
+            codeWords += cell.hasExpTree() ? cell.getExpressionTree().getCode().length : 0;
+            precedentEdges += cell.getInDegree();
+            dependentEdges += cell.getOutDegree();
+            formulaChars += cell.getFormula().length();
+            numRanges += ranges(cell).size();
+        }
+        if (4 * (codeWords + precedentEdges + dependentEdges + RANGE_INTS * numRanges
+                 + (long) (CELL_INTS + 3) * numCells) + 2 * formulaChars >= Integer.MAX_VALUE) {
+            throw new IOException("Spreadsheet too large for a snapshot");
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Channels.newOutputStream(FileChannel.open(theFile, StandardOpenOption.CREATE,
+                                                          StandardOpenOption.TRUNCATE_EXISTING,
+                                                          StandardOpenOption.WRITE)),
+                BUFFER_SIZE))) {
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(theSheet.getNumRows());
+            out.writeInt(theSheet.getNumColumns());
+            out.writeInt(numCells);
+            out.writeInt(numRanges);
+            out.writeInt((int) codeWords);
+            out.writeInt((int) precedentEdges);
+            out.writeInt((int) dependentEdges);
+            out.writeInt((int) formulaChars);
+
+            for (Cell cell: cells) {
+                out.writeInt(cell.getRow());
+                out.writeInt(cell.getColumn());
+                out.writeInt(cell.getValue());
+                out.writeInt(cell.hasExpTree() ? FORMULA : 0);
+            }
+
+            int offset = 0;
+            out.writeInt(offset);
+            for (Cell cell: cells) {
+                offset += cell.hasExpTree() ? cell.getExpressionTree().getCode().length : 0;
+                out.writeInt(offset);
+            }
+            for (Cell cell: cells) {
+                if (cell.hasExpTree()) {
+                    for (int word: cell.getExpressionTree().getCode()) {
+                        out.writeInt(word);
+                    }
+                }
+            }
+
+            offset = 0;
+            out.writeInt(offset);
+            for (Cell cell: cells) {
+                offset += cell.getInDegree();
+                out.writeInt(offset);
+            }
+            for (Cell cell: cells) {
+                writeIds(out, cell.dependencyIds(), ids);
+            }
+
+            offset = 0;
+            out.writeInt(offset);
+            for (Cell cell: cells) {
+                offset += cell.getOutDegree();
+                out.writeInt(offset);
+            }
+            for (Cell cell: cells) {
+                writeIds(out, cell.adjacentIds(), ids);
+            }
+
+            for (Cell cell: cells) {
+                for (FunctionToken range: ranges(cell)) {
+                    out.writeInt(ids[cell.getId()]);
+                    out.writeInt(range.getFunction());
+                    out.writeInt(range.getStart().getRow());
+                    out.writeInt(range.getStart().getColumn());
+                    out.writeInt(range.getEnd().getRow());
+                    out.writeInt(range.getEnd().getColumn());
+                }
+            }
+
+            offset = 0;
+            out.writeInt(offset);
+            for (Cell cell: cells) {
+                offset += cell.getFormula().length();
+                out.writeInt(offset);
+            }
+            for (Cell cell: cells) {
+                out.writeChars(cell.getFormula());
+            }
+        }
+    }
+
+
+    ///////////////////////////////// GETTERS //////////////////////////////////////////
+
+
+    /**
+     * Returns the number of rows of the saved spreadsheet.
+     * @return int number of rows
+     */
+    int getNumRows() {
+        return myNumRows;
+    }
+
+    /**
+     * Returns the number of columns of the saved spreadsheet.
+     * @return int number of columns
+     */
+    int getNumColumns() {
+        return myNumColumns;
+    }
+
+    /**
+     * Returns the number of saved cells.
+     * @return int number of cells
+     */
+    int getNumCells() {
+        return myNumCells;
+    }
+
+    /**
+     * Returns the number of saved dependency edges between cells.
+     * @return int number of edges
+     */
+    int getNumEdges() {
+        return myNumEdges;
+    }
+
+    /**
+     * Returns the number of saved ranges.
+     * @return int number of ranges
+     */
+    int getNumRanges() {
+        return myNumRanges;
+    }
+
+    /**
+     * Returns the row of a cell.
+     * @param theId the id of the cell
+     * @return int the row
+     */
+    int row(final int theId) {
+        return myBuffer.getInt(myCells + 4 * (CELL_INTS * theId));
+    }
+
+    /**
+     * Returns the column of a cell.
+     * @param theId the id of the cell
+     * @return int the column
+     */
+    int column(final int theId) {
+        return myBuffer.getInt(myCells + 4 * (CELL_INTS * theId + 1));
+    }
+
+    /**
+     * Returns the saved value of a cell.
+     * @param theId the id of the cell
+     * @return int the value
+     */
+    int value(final int theId) {
+        return myBuffer.getInt(myCells + 4 * (CELL_INTS * theId + 2));
+    }
+
+    /**
+     * Returns whether a cell holds a formula rather than text.
+     * @param theId the id of the cell
+     * @return true if the cell has an expression tree
+     */
+    boolean hasFormula(final int theId) {
+        return (myBuffer.getInt(myCells + 4 * (CELL_INTS * theId + 3)) & FORMULA) != 0;
+    }
+
+    /**
+     * Decodes the formula or text of a cell.
+     * @param theId the id of the cell
+     * @return String the formula
+     */
+    String formula(final int theId) {
+        final int from = myBuffer.getInt(myFormulas + 4 * theId);
+        final int to = myBuffer.getInt(myFormulas + 4 * (theId + 1));
+        final int chars = myFormulas + 4 * (myNumCells + 1);
+
+        final char[] formula = new char[to - from];
+        for (int i = 0; i < formula.length; i++) {
+            formula[i] = myBuffer.getChar(chars + 2 * (from + i));
+        }
+        return new String(formula);
+    }
+
+    /**
+     * Decodes the expression tree of a cell from its instructions.
+     * @param theId the id of the cell
+     * @return ExpressionTree the compiled tree, null for text
+     */
+    ExpressionTree expressionTree(final int theId) {
+        if (!hasFormula(theId)) {
+            return null;
+        }
+        return ExpressionTree.fromCode(ints(myCode, theId));
+    }
+
+    /**
+     * Decodes the ids of the cells the formula of a cell refers to.
+     * @param theId the id of the cell
+     * @return IntSet the ids, null if there are none
+     */
+    IntSet precedents(final int theId) {
+        return idSet(ints(myPrecedents, theId));
+    }
+
+    /**
+     * Decodes the ids of the cells whose formula refers to a cell.
+     * @param theId the id of the cell
+     * @return IntSet the ids, null if there are none
+     */
+    IntSet dependents(final int theId) {
+        return idSet(ints(myDependents, theId));
+    }
+
+    /**
+     * Returns the id of the cell whose formula refers to a range.
+     * @param theIndex the index of the range
+     * @return int the id of the formula cell
+     */
+    int rangeCell(final int theIndex) {
+        return myBuffer.getInt(myRanges + 4 * (RANGE_INTS * theIndex));
+    }
+
+    /**
+     * Decodes a range.
+     * @param theIndex the index of the range
+     * @return FunctionToken the aggregate over the range
+     */
+    FunctionToken range(final int theIndex) {
+        final int position = myRanges + 4 * (RANGE_INTS * theIndex);
+
+        return new FunctionToken(myBuffer.getInt(position + 4),
+                new CellToken(myBuffer.getInt(position + 8), myBuffer.getInt(position + 12)),
+                new CellToken(myBuffer.getInt(position + 16), myBuffer.getInt(position + 20)));
+    }
+
+
+    /////////////////////////// PRIVATE HELPER METHODS //////////////////////////////////////
+
+
+    /**
+     * Returns the occupied cells of theSheet in evaluation order,
+     * followed by any cells left out of it by a cycle.
+     * @param theSheet the spreadsheet
+     * @return List the cells
+     */
+    private static List<Cell> snapshotOrder(final Spreadsheet theSheet) {
+
+        final List<Cell> cells = new ArrayList<Cell>(theSheet.evaluationOrder());
+
+        if (cells.size() < theSheet.getNumOccupiedCells()) {
+            final BitSet ordered = new BitSet();
+            for (Cell cell: cells) {
+                ordered.set(cell.getId());
+            }
+            for (Cell cell: theSheet.occupiedCells()) {
+                if (!ordered.get(cell.getId())) {
+                    cells.add(cell);
+                }
+            }
+        }
+        return cells;
+    }
+
+    /**
+     * Returns the ranges the formula of a cell refers to.
+     * @param theCell the cell
+     * @return List the ranges, empty for text
+     */
+    private static List<FunctionToken> ranges(final Cell theCell) {
+        if (!theCell.hasExpTree()) {
+            return Collections.emptyList();
+        }
+        return theCell.getExpressionTree().getRangeReferences();
+    }
+
+    /**
+     * Writes the ids in the used slots of an id set, as snapshot ids.
+     * @param theOut where to write
+     * @param theSlots the slots, FREE if unused
+     * @param theIds the snapshot id of each cell id
+     * @throws IOException if writing fails
+     */
+    private static void writeIds(final DataOutputStream theOut, final int[] theSlots,
+                                 final int[] theIds) throws IOException {
+        for (int id: theSlots) {
+            if (id != IntSet.FREE) {
+                theOut.writeInt(theIds[id]);
+            }
+        }
+    }
+
+    /**
+     * Reads the ints of one cell from a section of offsets followed by
+     * the ints they point into.
+     * @param theSection byte position of the section
+     * @param theId the id of the cell
+     * @return int[] the ints of the cell
+     */
+    private int[] ints(final int theSection, final int theId) {
+        final int from = myBuffer.getInt(theSection + 4 * theId);
+        final int to = myBuffer.getInt(theSection + 4 * (theId + 1));
+        final int data = theSection + 4 * (myNumCells + 1);
+
+        final int[] ints = new int[to - from];
+        for (int i = 0; i < ints.length; i++) {
+            ints[i] = myBuffer.getInt(data + 4 * (from + i));
+        }
+        return ints;
+    }
+
+    /**
+     * Returns a set of ids.
+     * @param theIds the ids
+     * @return IntSet the set, null if theIds is empty
+     */
+    private static IntSet idSet(final int[] theIds) {
+        if (theIds.length == 0) {
+            return null;
+        }
+        final IntSet set = new IntSet();
+        for (int id: theIds) {
+            set.add(id);
+        }
+        return set;
+    }
+}
@@ -0,0 +1,125 @@
+package spreadsheet;
+
+import java.util.Arrays;
+
+
+/**
+ * The values of the cells of a spreadsheet, in primitive arrays apart
+ * from the Cell objects. Locations are grouped into the same chunks as
+ * CellMap, and a chunk holds its values column by column, so the values
+ * of consecutive rows of a column are next to each other in memory.
+ *
+ * A chunk is only allocated once a value is stored inside it, every
+ * other location reads as 0. Growing never moves a chunk, only the
+ * directories of chunks grow.
+ *
+ * @author Dmitriy Onishchenko
+ * @version 26 February 2016
+ */
+final class ValueStore {
+
+    /**
+     * Log2 of CellMap.CHUNK_ROWS.
+     */
+    private static final int ROW_BITS = Integer.numberOfTrailingZeros(CellMap.CHUNK_ROWS);
+
+    /**
+     * Log2 of CellMap.CHUNK_COLUMNS.
+     */
+    private static final int COLUMN_BITS = Integer.numberOfTrailingZeros(CellMap.CHUNK_COLUMNS);
+
+    /**
+     * Initial number of entries of a directory.
+     */
+    private static final int INITIAL_DIRECTORY = 4;
+
+    /**
+     * The chunks by column band and row band, null where nothing is stored.
+     */
+    private int[][][] myChunks;
+
+
+    /**
+     * Constructor.
+     */
+    ValueStore() {
+        myChunks = new int[INITIAL_DIRECTORY][][];
+    }
+
+
+    /**
+     * Returns the value at a location, 0 if none was stored.
+     * @param theRow the row, not negative
+     * @param theColumn the column, not negative
+     * @return int the value
+     */
+    int get(final int theRow, final int theColumn) {
+        final int slice = theColumn >>> COLUMN_BITS;
+        final int band = theRow >>> ROW_BITS;
+
+        if (slice >= myChunks.length || myChunks[slice] == null || band >= myChunks[slice].length) {
+            return 0;
+        }
+        final int[] chunk = myChunks[slice][band];
+        return chunk == null ? 0 : chunk[offset(theRow, theColumn)];
+    }
+
+    /**
+     * Stores the value at a location, allocating its chunk if needed.
+     * Storing a value where a chunk exists does not change the 
+     * directories, so a cell's value can be set on another thread than
+     * the one creating cells once its chunk has been allocated.
+     * @param theRow the row, not negative
+     * @param theColumn the column, not negative
+     * @param theValue the value
+     */
+    void set(final int theRow, final int theColumn, final int theValue) {
+        chunk(theColumn >>> COLUMN_BITS, theRow >>> ROW_BITS)[offset(theRow, theColumn)] = theValue;
+    }
+
+    /**
+     * Drops every value.
+     */
+    void clear() {
+        myChunks = new int[INITIAL_DIRECTORY][][];
+    }
+
+
+    /////////////////////////// PRIVATE HELPER METHODS //////////////////////////////////////
+
+
+    /**
+     * Returns a chunk, allocating it and growing the directories if needed.
+     * @param theSlice the column band
+     * @param theBand the row band
+     * @return int[] the chunk
+     */
+    private int[] chunk(final int theSlice, final int theBand) {
+
+        if (theSlice >= myChunks.length) {
+            myChunks = Arrays.copyOf(myChunks, Math.max(theSlice + 1, 2 * myChunks.length));
+        }
+        int[][] chunks = myChunks[theSlice];
+        if (chunks == null) {
+            chunks = new int[Math.max(theBand + 1, INITIAL_DIRECTORY)][];
+            myChunks[theSlice] = chunks;
+        } else if (theBand >= chunks.length) {
+            chunks = Arrays.copyOf(chunks, Math.max(theBand + 1, 2 * chunks.length));
+            myChunks[theSlice] = chunks;
+        }
+        if (chunks[theBand] == null) {
+            chunks[theBand] = new int[CellMap.CHUNK_ROWS * CellMap.CHUNK_COLUMNS];
+        }
+        return chunks[theBand];
+    }
+
+    /**
+     * Returns the index of a location inside its chunk, column by column.
+     * @param theRow the row
+     * @param theColumn the column
+     * @return int the index
+     */
+    private static int offset(final int theRow, final int theColumn) {
+        return (theColumn & (CellMap.CHUNK_COLUMNS - 1)) << ROW_BITS | (theRow & (CellMap.CHUNK_ROWS - 1));
+    }
+}